@@ -0,0 +1,213 @@
+/*
+ * Copyright (c) 2021 Weasis Team and other contributors.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse
+ * Public License 2.0 which is available at http://www.eclipse.org/legal/epl-2.0, or the Apache
+ * License, Version 2.0 which is available at https://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * SPDX-License-Identifier: EPL-2.0 OR Apache-2.0
+ */
+package org.weasis.isowriter;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.io.DicomInputStream;
+import org.dcm4che3.media.DicomDirReader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * DICOM instances of a DICOMDIR media or of a ZIP archive, read without loading them in the viewer.
+ * Only the headers (up to the pixel data) are parsed for building the DICOMDIR of the disc, the
+ * content of the files is streamed when writing the export folder.
+ */
+public class ArchiveReader implements Closeable {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(ArchiveReader.class);
+
+  private static final int PREAMBLE_LENGTH = 128;
+
+  private final File file;
+  private ZipFile zipFile;
+  private int skippedFiles;
+
+  /**
+   * @param file a DICOMDIR file or a ZIP archive
+   */
+  public ArchiveReader(File file) {
+    this.file = file;
+  }
+
+  public static boolean isDicomdir(File file) {
+    return DiscLayout.DICOMDIR.equalsIgnoreCase(file.getName());
+  }
+
+  /**
+   * @return the instances of the archive, each SOP Instance UID only once
+   */
+  public List<Instance> readInstances() throws IOException {
+    List<Instance> instances = new ArrayList<>();
+    Set<String> uids = new HashSet<>();
+    if (isDicomdir(file)) {
+      List<File> files = new ArrayList<>();
+      try (DicomDirReader reader = new DicomDirReader(file)) {
+        addReferencedFiles(reader, reader.readFirstRootDirectoryRecord(), files);
+      }
+      for (File f : files) {
+        try (InputStream in = new FileInputStream(f)) {
+          Attributes attributes = readHeader(in);
+          if (attributes == null) {
+            skippedFiles++;
+            LOGGER.warn("Not a DICOM file: {}", f); // $NON-NLS-1$
+          } else {
+            addInstance(new Instance(f, null, attributes), instances, uids);
+          }
+        } catch (IOException | RuntimeException e) {
+          // A corrupted file must not stop the reading of the other files
+          skippedFiles++;
+          LOGGER.warn("Cannot read the DICOM file: {}", f, e); // $NON-NLS-1$
+        }
+      }
+    } else {
+      zipFile = new ZipFile(file);
+      Enumeration<? extends ZipEntry> entries = zipFile.entries();
+      while (entries.hasMoreElements()) {
+        ZipEntry entry = entries.nextElement();
+        String name = new File(entry.getName()).getName();
+        // The DICOMDIR of the archive is rebuilt with the files of the disc
+        if (entry.isDirectory() || DiscLayout.DICOMDIR.equals(name.toUpperCase(Locale.ENGLISH))) {
+          continue;
+        }
+        try (InputStream in = zipFile.getInputStream(entry)) {
+          Attributes attributes = readHeader(in);
+          if (attributes == null) {
+            skippedFiles++;
+            LOGGER.warn("Not a DICOM file: {}", entry.getName()); // $NON-NLS-1$
+          } else {
+            addInstance(new Instance(null, entry, attributes), instances, uids);
+          }
+        } catch (IOException | RuntimeException e) {
+          // A corrupted entry must not stop the reading of the other entries
+          skippedFiles++;
+          LOGGER.warn("Cannot read the DICOM file: {}", entry.getName(), e); // $NON-NLS-1$
+        }
+      }
+    }
+    return instances;
+  }
+
+  /**
+   * @return the number of files of the archive which are not on the disc, not starting with the
+   *     preamble and the DICM prefix or not readable
+   */
+  public int getSkippedFiles() {
+    return skippedFiles;
+  }
+
+  private void addReferencedFiles(DicomDirReader reader, Attributes rec, List<File> files)
+      throws IOException {
+    while (rec != null) {
+      String[] ids = rec.getStrings(Tag.ReferencedFileID);
+      if (ids != null && ids.length > 0) {
+        files.add(new File(file.getParentFile(), String.join(File.separator, ids)));
+      }
+      addReferencedFiles(reader, reader.readLowerDirectoryRecord(rec), files);
+      rec = reader.readNextDirectoryRecord(rec);
+    }
+  }
+
+  private static void addInstance(Instance instance, List<Instance> instances, Set<String> uids) {
+    String iuid = instance.getAttributes().getString(Tag.SOPInstanceUID);
+    if (iuid != null && uids.add(iuid)) {
+      instances.add(instance);
+    }
+  }
+
+  /**
+   * @return the header of the file or null when the file does not start with the 128-byte preamble
+   *     and the DICM prefix of a DICOM file
+   */
+  private static Attributes readHeader(InputStream in) throws IOException {
+    BufferedInputStream bin = new BufferedInputStream(in);
+    if (!hasDicomPrefix(bin)) {
+      return null;
+    }
+    try (DicomInputStream dis = new DicomInputStream(bin)) {
+      dis.readFileMetaInformation();
+      // Stop before the pixel data, the content is copied without being parsed
+      return dis.readDataset(-1, Tag.PixelData);
+    }
+  }
+
+  private static boolean hasDicomPrefix(BufferedInputStream in) throws IOException {
+    byte[] b = new byte[PREAMBLE_LENGTH + 4];
+    in.mark(b.length);
+    int n = 0;
+    int count;
+    while (n < b.length && (count = in.read(b, n, b.length - n)) > 0) {
+      n += count;
+    }
+    in.reset();
+    return n == b.length
+        && b[PREAMBLE_LENGTH] == 'D'
+        && b[PREAMBLE_LENGTH + 1] == 'I'
+        && b[PREAMBLE_LENGTH + 2] == 'C'
+        && b[PREAMBLE_LENGTH + 3] == 'M';
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (zipFile != null) {
+      zipFile.close();
+    }
+  }
+
+  public final class Instance {
+    private final File file;
+    private final ZipEntry entry;
+    private final Attributes attributes;
+
+    private Instance(File file, ZipEntry entry, Attributes attributes) {
+      this.file = file;
+      this.entry = entry;
+      this.attributes = attributes;
+    }
+
+    /**
+     * @return the local file of the instance or null when it is in a ZIP archive
+     */
+    public File getFile() {
+      return file;
+    }
+
+    /**
+     * @return the header of the instance without the pixel data
+     */
+    public Attributes getAttributes() {
+      return attributes;
+    }
+
+    public InputStream openStream() throws IOException {
+      return file == null ? zipFile.getInputStream(entry) : new FileInputStream(file);
+    }
+
+    @Override
+    public String toString() {
+      return file == null ? entry.getName() : file.getPath();
+    }
+  }
+}
@@ -0,0 +1,221 @@
+/*
+ * Copyright (c) 2021 Weasis Team and other contributors.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse
+ * Public License 2.0 which is available at http://www.eclipse.org/legal/epl-2.0, or the Apache
+ * License, Version 2.0 which is available at https://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * SPDX-License-Identifier: EPL-2.0 OR Apache-2.0
+ */
+package org.weasis.isowriter;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * SHA-256 digests of all the files of the disc. The digests are computed while the files are
+ * written in the export folder, the manifest is stored at the root of the disc in the format of
+ * sha256sum.
+ */
+public class ChecksumManifest {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(ChecksumManifest.class);
+
+  public static final String FILENAME = "SHA256.TXT"; // $NON-NLS-1$
+  public static final String ALGORITHM = "SHA-256"; // $NON-NLS-1$
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private final File exportDir;
+  private final Map<String, String> digests = new TreeMap<>();
+
+  public ChecksumManifest(File exportDir) {
+    this.exportDir = exportDir;
+  }
+
+  /**
+   * @return the digests by path relative to the root of the disc with '/' as separator
+   */
+  public synchronized Map<String, String> getDigests() {
+    return new TreeMap<>(digests);
+  }
+
+  /**
+   * @return the digest of the file or null if it is not recorded
+   */
+  public synchronized String getDigest(File file) {
+    return digests.get(getRelativePath(file));
+  }
+
+  public synchronized boolean contains(File file) {
+    return digests.containsKey(getRelativePath(file));
+  }
+
+  private synchronized void put(File file, byte[] digest) {
+    digests.put(getRelativePath(file), toHex(digest));
+  }
+
+  /**
+   * @return a stream writing the file, the digest is recorded when the stream is closed
+   */
+  public OutputStream newOutputStream(File file) throws IOException {
+    MessageDigest md = newMessageDigest();
+    return new DigestOutputStream(new BufferedOutputStream(new FileOutputStream(file)), md) {
+      @Override
+      public void close() throws IOException {
+        super.close();
+        put(file, md.digest());
+      }
+    };
+  }
+
+  /**
+   * Writes a file from a buffer with a single write call, without intermediate buffer. The digest
+   * is computed on the buffer with the given instance, which is reset before use, so that the
+   * caller can reuse it for all its files.
+   */
+  public void writeFile(File file, byte[] data, int length, MessageDigest md) throws IOException {
+    md.reset();
+    md.update(data, 0, length);
+    try (FileOutputStream out = new FileOutputStream(file)) {
+      out.write(data, 0, length);
+    }
+    put(file, md.digest());
+  }
+
+  public void copy(InputStream in, File destination) throws IOException {
+    try (OutputStream out = newOutputStream(destination)) {
+      byte[] buf = new byte[BUFFER_SIZE];
+      int n;
+      while ((n = in.read(buf)) > 0) {
+        out.write(buf, 0, n);
+      }
+    }
+  }
+
+  public void copy(File source, File destination) throws IOException {
+    try (InputStream in = new FileInputStream(source)) {
+      copy(in, destination);
+    }
+  }
+
+  /** Extracts a zip archive in the folder and records the digests of the extracted files. */
+  public void unzip(InputStream inputStream, File outputDir) throws IOException {
+    Path root = outputDir.getCanonicalFile().toPath();
+    try (ZipInputStream zis = new ZipInputStream(inputStream)) {
+      ZipEntry entry;
+      while ((entry = zis.getNextEntry()) != null) {
+        File file = new File(outputDir, entry.getName());
+        if (!file.getCanonicalFile().toPath().startsWith(root)) {
+          throw new IOException("Entry outside of the target folder: " + entry.getName());
+        }
+        if (entry.isDirectory()) {
+          file.mkdirs();
+        } else {
+          file.getParentFile().mkdirs();
+          copy(zis, file);
+        }
+      }
+    }
+  }
+
+  /**
+   * Computes the digest of a file written by another component (e.g. the DICOMDIR). It requires
+   * reading the file again.
+   */
+  public void add(File file) throws IOException {
+    MessageDigest md = newMessageDigest();
+    try (InputStream in = new FileInputStream(file)) {
+      byte[] buf = new byte[BUFFER_SIZE];
+      int n;
+      while ((n = in.read(buf)) > 0) {
+        md.update(buf, 0, n);
+      }
+    }
+    put(file, md.digest());
+  }
+
+  /** Deletes a file which has not been entirely written and its digest. */
+  public void delete(File file) {
+    synchronized (this) {
+      digests.remove(getRelativePath(file));
+    }
+    try {
+      Files.deleteIfExists(file.toPath());
+    } catch (IOException e) {
+      LOGGER.warn("Cannot delete {}", file, e); // $NON-NLS-1$
+    }
+  }
+
+  /** Writes the manifest at the root of the export folder, missing digests are computed. */
+  public File write() throws IOException {
+    File manifest = new File(exportDir, FILENAME);
+    try (Stream<Path> stream = Files.walk(exportDir.toPath())) {
+      for (Path p : (Iterable<Path>) stream::iterator) {
+        File file = p.toFile();
+        if (file.isFile() && !file.equals(manifest) && !contains(file)) {
+          add(file);
+        }
+      }
+    }
+    try (BufferedWriter writer =
+        Files.newBufferedWriter(manifest.toPath(), StandardCharsets.UTF_8)) {
+      for (Map.Entry<String, String> e : getDigests().entrySet()) {
+        writer.write(e.getValue());
+        writer.write("  "); // $NON-NLS-1$
+        writer.write(e.getKey());
+        writer.write('\n');
+      }
+    }
+    return manifest;
+  }
+
+  private String getRelativePath(File file) {
+    String root = exportDir.getPath();
+    String path = file.getPath();
+    // The files are created from the export folder, avoid building the paths for each file
+    if (path.length() > root.length()
+        && path.startsWith(root)
+        && path.charAt(root.length()) == File.separatorChar) {
+      return path.substring(root.length() + 1).replace(File.separatorChar, '/');
+    }
+    return exportDir.toPath().relativize(file.toPath()).toString().replace(File.separatorChar, '/');
+  }
+
+  public static MessageDigest newMessageDigest() {
+    try {
+      return MessageDigest.getInstance(ALGORITHM);
+    } catch (NoSuchAlgorithmException e) {
+      // SHA-256 is required in all the Java platforms
+      throw new IllegalStateException(e);
+    }
+  }
+
+  public static String toHex(byte[] digest) {
+    StringBuilder buf = new StringBuilder(digest.length * 2);
+    for (byte b : digest) {
+      buf.append(Character.forDigit((b >> 4) & 0xf, 16));
+      buf.append(Character.forDigit(b & 0xf, 16));
+    }
+    return buf.toString();
+  }
+}
@@ -0,0 +1,333 @@
+/*
+ * Copyright (c) 2021 Weasis Team and other contributors.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse
+ * Public License 2.0 which is available at http://www.eclipse.org/legal/epl-2.0, or the Apache
+ * License, Version 2.0 which is available at https://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * SPDX-License-Identifier: EPL-2.0 OR Apache-2.0
+ */
+package org.weasis.isowriter;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Sequence;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.UID;
+import org.dcm4che3.data.VR;
+import org.dcm4che3.io.DicomInputStream;
+import org.dcm4che3.io.DicomInputStream.IncludeBulkData;
+import org.dcm4che3.io.DicomOutputStream;
+import org.dcm4che3.util.UIDUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * De-identification applied while copying the DICOM files into the export folder. It follows the
+ * actions of the Basic Application Confidentiality Profile (PS3.15 table E.1-1) with the options
+ * "Retain Patient Characteristics" and "Retain Longitudinal Temporal Information with Full Dates".
+ * The descriptions and the comments are removed (no "Clean Descriptors" option) and the
+ * characteristics which must be cleaned with this option (ethnic group, occupation, history) are
+ * removed. The structured documents and the images with burned-in annotations are rejected: their
+ * content cannot be de-identified by tags.
+ *
+ * <p>The UIDs are replaced consistently for the whole export, so the references between instances
+ * (DICOMDIR, presentation states, frame of reference...) are preserved. The pixel data are not
+ * loaded: they are streamed from the source file to the destination file.
+ */
+public class DeidentificationProfile {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(DeidentificationProfile.class);
+
+  public static final String ANONYMIZED = "ANONYMIZED"; // $NON-NLS-1$
+
+  private static final int[] UID_TAGS = {
+    Tag.MediaStorageSOPInstanceUID,
+    Tag.InstanceCreatorUID,
+    Tag.SOPInstanceUID,
+    Tag.StudyInstanceUID,
+    Tag.SeriesInstanceUID,
+    Tag.FrameOfReferenceUID,
+    Tag.SynchronizationFrameOfReferenceUID,
+    Tag.ConcatenationUID,
+    Tag.DimensionOrganizationUID,
+    Tag.IrradiationEventUID,
+    Tag.StorageMediaFileSetUID,
+    Tag.DeviceUID,
+    Tag.ReferencedSOPInstanceUID,
+    Tag.ReferencedSOPInstanceUIDInFile,
+    Tag.ReferencedFrameOfReferenceUID,
+    Tag.RelatedFrameOfReferenceUID,
+    Tag.UID
+  };
+
+  // Type 2 attributes: must be present but can be empty
+  private static final int[] EMPTY_TAGS = {
+    Tag.PatientBirthDate,
+    Tag.AccessionNumber,
+    Tag.StudyID,
+    Tag.ReferringPhysicianName,
+    Tag.ContentCreatorName
+  };
+
+  private static final int[] REMOVED_TAGS = {
+    Tag.InstitutionName,
+    Tag.InstitutionAddress,
+    Tag.InstitutionalDepartmentName,
+    Tag.ReferringPhysicianAddress,
+    Tag.ReferringPhysicianTelephoneNumbers,
+    Tag.StationName,
+    Tag.PhysiciansOfRecord,
+    Tag.PerformingPhysicianName,
+    Tag.NameOfPhysiciansReadingStudy,
+    Tag.OperatorsName,
+    Tag.AdmittingDiagnosesDescription,
+    Tag.ReferencedPatientSequence,
+    Tag.IssuerOfPatientID,
+    Tag.IssuerOfPatientIDQualifiersSequence,
+    Tag.PatientBirthTime,
+    Tag.OtherPatientIDs,
+    Tag.OtherPatientIDsSequence,
+    Tag.OtherPatientNames,
+    Tag.PatientBirthName,
+    Tag.PatientAddress,
+    Tag.PatientMotherBirthName,
+    Tag.MilitaryRank,
+    Tag.BranchOfService,
+    Tag.MedicalRecordLocator,
+    Tag.CountryOfResidence,
+    Tag.RegionOfResidence,
+    Tag.PatientTelephoneNumbers,
+    Tag.EthnicGroup,
+    Tag.Occupation,
+    Tag.AdditionalPatientHistory,
+    Tag.PatientComments,
+    Tag.DeviceSerialNumber,
+    Tag.RequestingPhysician,
+    Tag.RequestAttributesSequence,
+    Tag.PerformedProcedureStepID,
+    Tag.RequestedProcedureID,
+    Tag.ScheduledProcedureStepID,
+    Tag.InstitutionCodeSequence,
+    Tag.PhysiciansOfRecordIdentificationSequence,
+    Tag.PerformingPhysicianIdentificationSequence,
+    Tag.PhysiciansReadingStudyIdentificationSequence,
+    Tag.ReferringPhysicianIdentificationSequence,
+    Tag.OperatorIdentificationSequence,
+    Tag.StudyDescription,
+    Tag.SeriesDescription,
+    Tag.ProtocolName,
+    Tag.ImageComments,
+    Tag.DerivationDescription,
+    Tag.AdmittingDiagnosesCodeSequence,
+    Tag.ReferencedStudySequence,
+    Tag.ReferencedPerformedProcedureStepSequence,
+    Tag.RequestedProcedureDescription,
+    Tag.ReasonForTheRequestedProcedure,
+    Tag.RequestedProcedureComments,
+    Tag.ImagingServiceRequestComments,
+    Tag.ScheduledProcedureStepDescription,
+    Tag.PerformedProcedureStepDescription,
+    Tag.CommentsOnThePerformedProcedureStep,
+    Tag.OriginalAttributesSequence
+  };
+
+  private final Map<String, String> uids = new HashMap<>();
+  private final Map<String, String> patientIds = new HashMap<>();
+  private int rejectedInstances;
+
+  /**
+   * @return the UID replacing the original one for the whole export
+   */
+  public synchronized String remapUid(String uid) {
+    if (uid == null) {
+      return null;
+    }
+    return uids.computeIfAbsent(uid, k -> UIDUtils.createUID());
+  }
+
+  private synchronized String remapPatientId(String pid) {
+    String key = pid == null ? "" : pid;
+    return patientIds.computeIfAbsent(
+        key, k -> String.format("%s-%04d", ANONYMIZED, patientIds.size() + 1)); // $NON-NLS-1$
+  }
+
+  /**
+   * De-identifies the attributes in place. The attributes are removed or emptied at all the levels
+   * of the dataset, including the items of the sequences.
+   *
+   * @return the same attributes
+   */
+  public Attributes apply(Attributes dataset) {
+    String pid = remapPatientId(dataset.getString(Tag.PatientID));
+    for (Attributes item : getItems(dataset)) {
+      clean(item);
+      // Patient references in the items (e.g. source patient of a document)
+      if (item.contains(Tag.PatientID)) {
+        item.setString(Tag.PatientID, VR.LO, pid);
+      }
+      if (item.contains(Tag.PatientName)) {
+        item.setString(Tag.PatientName, VR.PN, pid);
+      }
+    }
+    clean(dataset);
+    dataset.setString(Tag.PatientID, VR.LO, pid);
+    dataset.setString(Tag.PatientName, VR.PN, pid);
+    remapUids(dataset);
+
+    dataset.setString(Tag.PatientIdentityRemoved, VR.CS, "YES"); // $NON-NLS-1$
+    dataset.setString(Tag.LongitudinalTemporalInformationModified, VR.CS, "UNMODIFIED");
+    dataset.setString(
+        Tag.DeidentificationMethod, VR.LO, "Weasis ISO export, basic profile"); // $NON-NLS-1$
+    Sequence methods = dataset.newSequence(Tag.DeidentificationMethodCodeSequence, 3);
+    methods.add(newCode("113100", "Basic Application Confidentiality Profile")); // $NON-NLS-1$
+    methods.add(newCode("113108", "Retain Patient Characteristics Option")); // $NON-NLS-1$
+    methods.add(
+        newCode("113106", "Retain Longitudinal Temporal Information Full Dates Option"));
+    return dataset;
+  }
+
+  private static void clean(Attributes attrs) {
+    attrs.removePrivateAttributes();
+    for (int tag : REMOVED_TAGS) {
+      attrs.remove(tag);
+    }
+    for (int tag : EMPTY_TAGS) {
+      if (attrs.contains(tag)) {
+        attrs.setNull(tag, attrs.getVR(tag));
+      }
+    }
+  }
+
+  /**
+   * @return the items of all the sequences of the dataset, at all the levels
+   */
+  private static List<Attributes> getItems(Attributes dataset) {
+    List<Attributes> items = new ArrayList<>();
+    try {
+      // Collected first, the items are modified after the traversal
+      dataset.accept(
+          (attrs, tag, vr, value) -> {
+            if (value instanceof Sequence) {
+              items.addAll((Sequence) value);
+            }
+            return true;
+          },
+          true);
+    } catch (Exception e) {
+      LOGGER.error("Cannot read the sequences", e); // $NON-NLS-1$
+    }
+    return items;
+  }
+
+  /**
+   * @return the number of instances which cannot be de-identified and are not written
+   */
+  public synchronized int getRejectedInstances() {
+    return rejectedInstances;
+  }
+
+  private synchronized IOException reject(String message) {
+    rejectedInstances++;
+    return new IOException(message);
+  }
+
+  /**
+   * @return true if the pixel data contain burned-in annotations, the pixels are not modified so the
+   *     instance cannot be de-identified
+   */
+  public static boolean hasBurnedInAnnotation(Attributes dataset) {
+    return "YES".equals(dataset.getString(Tag.BurnedInAnnotation)); // $NON-NLS-1$
+  }
+
+  private static Attributes newCode(String value, String meaning) {
+    Attributes code = new Attributes(3);
+    code.setString(Tag.CodeValue, VR.SH, value);
+    code.setString(Tag.CodingSchemeDesignator, VR.SH, "DCM"); // $NON-NLS-1$
+    code.setString(Tag.CodeMeaning, VR.LO, meaning);
+    return code;
+  }
+
+  private void remapUids(Attributes dataset) {
+    try {
+      dataset.accept(
+          (attrs, tag, vr, value) -> {
+            if (vr == VR.UI && isRemappedUid(tag)) {
+              String[] values = attrs.getStrings(tag);
+              if (values != null) {
+                for (int i = 0; i < values.length; i++) {
+                  values[i] = remapUid(values[i]);
+                }
+                attrs.setString(tag, VR.UI, values);
+              }
+            }
+            return true;
+          },
+          true);
+    } catch (Exception e) {
+      LOGGER.error("Cannot replace UIDs", e); // $NON-NLS-1$
+    }
+  }
+
+  private static boolean isRemappedUid(int tag) {
+    for (int t : UID_TAGS) {
+      if (t == tag) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Writes a de-identified copy of the source file. Only the header is parsed, the bulk data (pixel
+   * data, overlays...) are copied from the source file without decoding.
+   *
+   * @return the de-identified attributes without the bulk data values
+   */
+  public Attributes write(File source, OutputStream out) throws IOException {
+    try (DicomInputStream dis = new DicomInputStream(source)) {
+      dis.setIncludeBulkData(IncludeBulkData.URI);
+      return write(dis, out);
+    }
+  }
+
+  /**
+   * Writes a de-identified copy of a source stream (content read ahead by the {@link
+   * SourcePrefetcher}, entry of an archive...). The bulk data of one instance are kept in memory
+   * without decoding.
+   *
+   * @return the de-identified attributes
+   */
+  public Attributes write(InputStream source, OutputStream out) throws IOException {
+    try (DicomInputStream dis = new DicomInputStream(source)) {
+      dis.setIncludeBulkData(IncludeBulkData.YES);
+      return write(dis, out);
+    }
+  }
+
+  private Attributes write(DicomInputStream dis, OutputStream out) throws IOException {
+    dis.readFileMetaInformation();
+    Attributes dataset = dis.readDataset(-1, -1);
+    String tsuid = dis.getTransferSyntax();
+    if (dataset.contains(Tag.ContentSequence)) {
+      // The basic profile removes the content, the document would be invalid
+      throw reject("Cannot de-identify a structured document"); // $NON-NLS-1$
+    }
+    if (hasBurnedInAnnotation(dataset)) {
+      // The pixel data are copied unchanged
+      throw reject("Cannot de-identify an image with burned-in annotations"); // $NON-NLS-1$
+    }
+    apply(dataset);
+    try (DicomOutputStream dos = new DicomOutputStream(out, UID.ExplicitVRLittleEndian)) {
+      dos.writeDataset(dataset.createFileMetaInformation(tsuid), dataset);
+    }
+    return dataset;
+  }
+}
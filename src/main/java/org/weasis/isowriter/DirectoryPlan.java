@@ -0,0 +1,183 @@
+/*
+ * Copyright (c) 2021 Weasis Team and other contributors.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse
+ * Public License 2.0 which is available at http://www.eclipse.org/legal/epl-2.0, or the Apache
+ * License, Version 2.0 which is available at https://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * SPDX-License-Identifier: EPL-2.0 OR Apache-2.0
+ */
+package org.weasis.isowriter;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.weasis.core.api.media.data.MediaElement;
+import org.weasis.core.api.media.data.TagW;
+import org.weasis.dicom.codec.TagD;
+
+/**
+ * Folders and file IDs of the DICOM files of the disc (patient/study/series/instance). Each folder
+ * is resolved only once, the IDs built from the UIDs are checked against collisions in their parent
+ * folder and the folders registered before {@link #createDirectories()} are created in one pass.
+ * The IDs of the series and of the instances start with their number when it is known, see {@link
+ * DiscLayout}.
+ */
+public class DirectoryPlan {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(DirectoryPlan.class);
+
+  private final Folder root;
+  private final DeidentificationProfile profile;
+  private final List<Folder> leaves = new ArrayList<>();
+  private boolean created;
+
+  /**
+   * @param rootDir the folder containing the patient folders
+   * @param profile the de-identification profile for building the IDs from the new UIDs, can be
+   *     null
+   */
+  public DirectoryPlan(File rootDir, DeidentificationProfile profile) {
+    this.root = new Folder(rootDir);
+    this.profile = profile;
+  }
+
+  public synchronized File getSeriesDirectory(MediaElement media) {
+    return getSeriesFolder(media).dir;
+  }
+
+  public synchronized File getInstanceFile(MediaElement media) {
+    Folder series = getSeriesFolder(media);
+    String iuid = remap(TagD.getTagValue(media, Tag.SOPInstanceUID, String.class));
+    Integer number = TagD.getTagValue(media, Tag.InstanceNumber, Integer.class);
+    return new File(series.dir, getId(series, iuid, number, DiscLayout.INSTANCE_DIGITS));
+  }
+
+  public synchronized File getSeriesDirectory(
+      String patientUID, String studyUID, String seriesUID) {
+    return getSeriesFolder(patientUID, studyUID, seriesUID, null).dir;
+  }
+
+  public synchronized File getInstanceFile(
+      String patientUID, String studyUID, String seriesUID, String sopInstanceUID) {
+    Folder series = getSeriesFolder(patientUID, studyUID, seriesUID, null);
+    return new File(series.dir, getId(series, remap(sopInstanceUID), null, 0));
+  }
+
+  /**
+   * @param sopInstanceUID the UID of a new instance of the series of the media (e.g. a presentation
+   *     state), it is not remapped
+   */
+  public synchronized File getInstanceFile(MediaElement media, String sopInstanceUID) {
+    Folder series = getSeriesFolder(media);
+    return new File(series.dir, getId(series, sopInstanceUID, null, 0));
+  }
+
+  /**
+   * @param dataset the header of an instance which is not loaded in the viewer (see {@link
+   *     ArchiveReader})
+   */
+  public synchronized File getInstanceFile(Attributes dataset) {
+    String patientID = dataset.getString(Tag.PatientID, "");
+    String issuer = dataset.getString(Tag.IssuerOfPatientID, null);
+    Folder series =
+        getSeriesFolder(
+            issuer == null ? patientID : patientID + "^" + issuer, // $NON-NLS-1$
+            dataset.getString(Tag.StudyInstanceUID),
+            dataset.getString(Tag.SeriesInstanceUID),
+            getNumber(dataset, Tag.SeriesNumber));
+    String iuid = remap(dataset.getString(Tag.SOPInstanceUID));
+    Integer number = getNumber(dataset, Tag.InstanceNumber);
+    return new File(series.dir, getId(series, iuid, number, DiscLayout.INSTANCE_DIGITS));
+  }
+
+  private static Integer getNumber(Attributes dataset, int tag) {
+    return dataset.containsValue(tag) ? dataset.getInt(tag, 0) : null;
+  }
+
+  /** Creates all the registered folders, the folders registered afterwards are created directly. */
+  public synchronized void createDirectories() {
+    for (Folder f : leaves) {
+      if (!f.dir.mkdirs() && !f.dir.isDirectory()) {
+        LOGGER.error("Cannot create the folder: {}", f.dir); // $NON-NLS-1$
+      }
+    }
+    leaves.clear();
+    created = true;
+  }
+
+  private Folder getSeriesFolder(MediaElement media) {
+    return getSeriesFolder(
+        (String) media.getTagValue(TagW.PatientPseudoUID),
+        TagD.getTagValue(media, Tag.StudyInstanceUID, String.class),
+        TagD.getTagValue(media, Tag.SeriesInstanceUID, String.class),
+        TagD.getTagValue(media, Tag.SeriesNumber, Integer.class));
+  }
+
+  private Folder getSeriesFolder(
+      String patientUID, String studyUID, String seriesUID, Integer seriesNumber) {
+    Folder patient = getFolder(root, remap(patientUID), null, 0, false);
+    Folder study = getFolder(patient, remap(studyUID), null, 0, false);
+    return getFolder(study, remap(seriesUID), seriesNumber, DiscLayout.SERIES_DIGITS, true);
+  }
+
+  private Folder getFolder(Folder parent, String uid, Integer number, int digits, boolean leaf) {
+    Folder folder = parent.children.get(uid);
+    if (folder == null) {
+      folder = new Folder(new File(parent.dir, getId(parent, uid, number, digits)));
+      parent.children.put(uid, folder);
+      if (leaf) {
+        if (created) {
+          folder.dir.mkdirs();
+        } else {
+          leaves.add(folder);
+        }
+      }
+    }
+    return folder;
+  }
+
+  /**
+   * @param number the number giving the order of the ID in the folder, can be null
+   * @return the ID of the UID, unique in the parent folder
+   */
+  private static String getId(Folder parent, String uid, Integer number, int digits) {
+    String id = parent.ids.get(uid);
+    if (id != null) {
+      return id;
+    }
+    String prefix = DiscLayout.getOrderPrefix(number, digits);
+    int attempt = 0;
+    id = DiscLayout.getFileId(prefix, uid, attempt);
+    String owner;
+    while ((owner = parent.owners.putIfAbsent(id, uid)) != null && !owner.equals(uid)) {
+      LOGGER.warn("Same file ID {} for {} and {}", id, owner, uid); // $NON-NLS-1$
+      id = DiscLayout.getFileId(prefix, uid, ++attempt);
+    }
+    parent.ids.put(uid, id);
+    return id;
+  }
+
+  private String remap(String uid) {
+    String val = uid == null ? "" : uid;
+    return profile == null ? val : profile.remapUid(val);
+  }
+
+  private static class Folder {
+    private final File dir;
+    private final Map<String, Folder> children = new HashMap<>();
+    // UID => ID and ID => UID of the folders and files
+    private final Map<String, String> ids = new HashMap<>();
+    private final Map<String, String> owners = new HashMap<>();
+
+    Folder(File dir) {
+      this.dir = dir;
+    }
+  }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright (c) 2021 Weasis Team and other contributors.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse
+ * Public License 2.0 which is available at http://www.eclipse.org/legal/epl-2.0, or the Apache
+ * License, Version 2.0 which is available at https://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * SPDX-License-Identifier: EPL-2.0 OR Apache-2.0
+ */
+package org.weasis.isowriter;
+
+/**
+ * Names and order of the disc content. java-iso-tools writes the data of the files directory by
+ * directory, breadth first (the files of the root, then the directories of the first level...),
+ * and in the sorted order of the names in each directory. The order in which the files are added
+ * does not change the image.
+ *
+ * <p>So the files of the viewer (root and first levels) are always before the images, and the
+ * DICOM files are written in the order of their IDs. The IDs of the series and of the instances
+ * start with their number, so that a viewer reading a series in the order of the instance numbers
+ * reads the disc sequentially.
+ */
+public class DiscLayout {
+
+  public static final String DICOMDIR = "DICOMDIR"; // $NON-NLS-1$
+  public static final String DICOM = "DICOM"; // $NON-NLS-1$
+  public static final String JPEG = "JPEG"; // $NON-NLS-1$
+
+  // File IDs of a DICOM media: 8 characters at most
+  public static final int ID_LENGTH = 8;
+  public static final int SERIES_DIGITS = 4;
+  public static final int INSTANCE_DIGITS = 5;
+
+  private DiscLayout() {}
+
+  /**
+   * @return the number on the given digits or null if there is no number or if it does not fit
+   */
+  public static String getOrderPrefix(Integer number, int digits) {
+    if (number == null || number < 0 || String.valueOf(number).length() > digits) {
+      return null;
+    }
+    return String.format("%0" + digits + "d", number); // $NON-NLS-1$ $NON-NLS-2$
+  }
+
+  /**
+   * @param prefix the order prefix (see {@link #getOrderPrefix(Integer, int)}), null for an ID
+   *     made only from the hash of the UID
+   * @param attempt the number of the attempt, another ID is built when the previous one is already
+   *     used in the folder
+   * @return the file ID: the prefix completed with the hash of the UID up to 8 characters
+   */
+  public static String getFileId(String prefix, String uid, int attempt) {
+    String value = attempt == 0 ? uid : uid + "." + attempt; // $NON-NLS-1$
+    if (prefix == null) {
+      return IsoImageExport.makeFileIDs(value);
+    }
+    int digits = ID_LENGTH - prefix.length();
+    int hash = value.hashCode() & ((1 << (4 * digits)) - 1);
+    return prefix + String.format("%0" + digits + "x", hash); // $NON-NLS-1$ $NON-NLS-2$
+  }
+}
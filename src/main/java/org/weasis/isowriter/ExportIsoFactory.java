@@ -12,6 +12,8 @@ package org.weasis.isowriter;
 import java.io.File;
 import java.util.Hashtable;
 import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import org.osgi.framework.BundleContext;
 import org.osgi.service.component.ComponentContext;
 import org.osgi.service.component.annotations.Activate;
 import org.osgi.service.component.annotations.Deactivate;
@@ -31,7 +33,18 @@ public class ExportIsoFactory implements DicomExportFactory {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(ExportIsoFactory.class);
 
-  public static final Properties EXPORT_PERSISTENCE = new Properties();
+  private static final String EXPORT_PREFERENCES = "export.properties"; // $NON-NLS-1$
+
+  /**
+   * @deprecated use {@link #getExportPersistence()}, this instance is empty until the preferences
+   *     are read at their first use
+   */
+  @Deprecated public static final Properties EXPORT_PERSISTENCE = new Properties();
+
+  // The data folder is created by BundlePreferences, it is resolved at the first use
+  private static volatile BundleContext bundleContext;
+  private static File dataFolder;
+  private static boolean persistenceLoaded;
 
   @Override
   public ExportDicom createDicomExportPage(Hashtable<String, Object> properties) {
@@ -45,20 +58,68 @@ public class ExportIsoFactory implements DicomExportFactory {
     return null;
   }
 
+  /**
+   * @return the data folder of the plugin, created at the first call, or null if the component is
+   *     not activated
+   */
+  public static synchronized File getDataFolder() {
+    BundleContext context = bundleContext;
+    if (dataFolder == null && context != null) {
+      dataFolder = BundlePreferences.getDataFolder(context);
+    }
+    return dataFolder;
+  }
+
+  /**
+   * @return the export preferences, read from the data folder of the plugin at the first call
+   */
+  public static synchronized Properties getExportPersistence() {
+    if (!persistenceLoaded) {
+      File folder = getDataFolder();
+      if (folder != null) {
+        readPreferences(folder, EXPORT_PERSISTENCE);
+        persistenceLoaded = true;
+      }
+    }
+    return EXPORT_PERSISTENCE;
+  }
+
+  private static void readPreferences(File folder, Properties preferences) {
+    // Values set through the deprecated field before the first read are kept
+    Properties stored = new Properties();
+    FileUtil.readProperties(new File(folder, EXPORT_PREFERENCES), stored);
+    stored.forEach(preferences::putIfAbsent);
+  }
+
   @Activate
   protected void activate(ComponentContext context) throws Exception {
-    LOGGER.info("Export ISO image is activated");
-    FileUtil.readProperties(
-        new File(BundlePreferences.getDataFolder(context.getBundleContext()), "export.properties"),
-        EXPORT_PERSISTENCE); //$NON-NLS-1$
+    long start = System.nanoTime();
+    // No file I/O here, the data folder and the preferences are read when the export page is
+    // created, the classes of the embedded ISO libraries when an image is built
+    bundleContext = context.getBundleContext();
+    LOGGER.info(
+        "Export ISO image is activated in {} ms", // $NON-NLS-1$
+        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
   }
 
   @Deactivate
   protected void deactivate(ComponentContext context) {
     LOGGER.info("Export ISO image is deactivated");
-    FileUtil.storeProperties(
-        new File(BundlePreferences.getDataFolder(context.getBundleContext()), "export.properties"),
-        EXPORT_PERSISTENCE,
-        null); //$NON-NLS-1$
+    synchronized (ExportIsoFactory.class) {
+      // Nothing to store when the export has not been used
+      if (persistenceLoaded || !EXPORT_PERSISTENCE.isEmpty()) {
+        File folder = getDataFolder();
+        if (folder != null) {
+          if (!persistenceLoaded) {
+            readPreferences(folder, EXPORT_PERSISTENCE);
+          }
+          FileUtil.storeProperties(new File(folder, EXPORT_PREFERENCES), EXPORT_PERSISTENCE, null);
+        }
+      }
+      EXPORT_PERSISTENCE.clear();
+      persistenceLoaded = false;
+      dataFolder = null;
+      bundleContext = null;
+    }
   }
 }
@@ -0,0 +1,142 @@
+/*
+ * Copyright (c) 2021 Weasis Team and other contributors.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse
+ * Public License 2.0 which is available at http://www.eclipse.org/legal/epl-2.0, or the Apache
+ * License, Version 2.0 which is available at https://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * SPDX-License-Identifier: EPL-2.0 OR Apache-2.0
+ */
+package org.weasis.isowriter;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Counters of an ISO export, logged when the export is finished. The heap allocation is measured
+ * for the thread running the export, it must be the thread creating and logging the metrics.
+ */
+public class ExportMetrics {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(ExportMetrics.class);
+
+  private final long startTime;
+  private final long startGcCount;
+  private final long startGcTime;
+  private final long startAllocatedBytes;
+
+  private int dicomInstances;
+  private int jpegImages;
+  private int prefetchedReads;
+  private long prefetchWaitTime;
+  private int directReads;
+  private long directReadTime;
+
+  public ExportMetrics() {
+    this.startTime = System.nanoTime();
+    this.startGcCount = getGcCount();
+    this.startGcTime = getGcTime();
+    this.startAllocatedBytes = getAllocatedBytes();
+  }
+
+  public void addDicomInstance() {
+    dicomInstances++;
+  }
+
+  public void addJpegImage() {
+    jpegImages++;
+  }
+
+  /**
+   * @param prefetched true if the source has been read ahead, false if it must be read directly
+   * @param waitTime the time waiting for the prefetcher in nanoseconds
+   */
+  public void addPrefetchWait(boolean prefetched, long waitTime) {
+    if (prefetched) {
+      prefetchedReads++;
+    }
+    prefetchWaitTime += waitTime;
+  }
+
+  /**
+   * @param readTime the time of a synchronous read (and copy) of a source in nanoseconds
+   */
+  public void addDirectRead(long readTime) {
+    directReads++;
+    directReadTime += readTime;
+  }
+
+  public void log() {
+    long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime);
+    long gcCount = getGcCount() - startGcCount;
+    long gcTime = getGcTime() - startGcTime;
+    int images = Math.max(1, dicomInstances + jpegImages);
+    long allocated = getAllocatedBytes();
+    LOGGER.info(
+        "ISO export: {} DICOM instances, {} JPEG images in {} ms", // $NON-NLS-1$
+        dicomInstances,
+        jpegImages,
+        elapsed);
+    LOGGER.info(
+        "ISO export GC: {} collections ({} ms), {} and {} ms per 100 images", // $NON-NLS-1$
+        gcCount,
+        gcTime,
+        String.format("%.2f", gcCount * 100.0 / images), // $NON-NLS-1$
+        String.format("%.2f", gcTime * 100.0 / images)); // $NON-NLS-1$
+    if (startAllocatedBytes >= 0 && allocated >= 0) {
+      long bytes = allocated - startAllocatedBytes;
+      LOGGER.info(
+          "ISO export allocation: {} MB, {} KB per image", // $NON-NLS-1$
+          bytes / (1024 * 1024),
+          bytes / 1024 / images);
+    }
+    if (prefetchedReads + directReads > 0) {
+      LOGGER.info(
+          "ISO export reads: {} prefetched ({} ms waiting), {} direct ({} ms)", // $NON-NLS-1$
+          prefetchedReads,
+          TimeUnit.NANOSECONDS.toMillis(prefetchWaitTime),
+          directReads,
+          TimeUnit.NANOSECONDS.toMillis(directReadTime));
+    }
+  }
+
+  /**
+   * @return the bytes allocated by the current thread or -1 if the JVM does not support it
+   */
+  private static long getAllocatedBytes() {
+    try {
+      ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+      if (bean instanceof com.sun.management.ThreadMXBean) {
+        com.sun.management.ThreadMXBean sunBean = (com.sun.management.ThreadMXBean) bean;
+        if (sunBean.isThreadAllocatedMemorySupported()
+            && sunBean.isThreadAllocatedMemoryEnabled()) {
+          return sunBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+      }
+    } catch (LinkageError e) {
+      // com.sun.management is an optional import of the bundle
+      LOGGER.debug("Cannot measure the allocated bytes", e); // $NON-NLS-1$
+    }
+    return -1;
+  }
+
+  private static long getGcCount() {
+    long count = 0;
+    for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+      count += Math.max(0, gc.getCollectionCount());
+    }
+    return count;
+  }
+
+  private static long getGcTime() {
+    long time = 0;
+    for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+      time += Math.max(0, gc.getCollectionTime());
+    }
+    return time;
+  }
+}
@@ -0,0 +1,358 @@
+/*
+ * Copyright (c) 2021 Weasis Team and other contributors.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse
+ * Public License 2.0 which is available at http://www.eclipse.org/legal/epl-2.0, or the Apache
+ * License, Version 2.0 which is available at https://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * SPDX-License-Identifier: EPL-2.0 OR Apache-2.0
+ */
+package org.weasis.isowriter;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.weasis.core.util.FileUtil;
+import org.weasis.isowriter.IsoImageReader.Entry;
+
+/**
+ * Reuse of a previous ISO image sharing instances with the current export. The manifest of each
+ * built image (SOP Instance UID, path, extent and digest of the files, path, length and
+ * modification date of their local source) is kept in the data folder of the plugin.
+ *
+ * <p>An instance without local source (e.g. retrieved by WADO) is copied from the extent of the
+ * previous image instead of being retrieved again, the copy is checked against the recorded digest.
+ * An instance with a local source is always copied from its source, reading the previous image is
+ * not faster. When all the instances of the previous image are exported again unchanged, its
+ * DICOMDIR is updated with the new instances instead of being rebuilt, which also avoids building
+ * the icons of the series.
+ */
+public class IncrementalBuild implements Closeable {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(IncrementalBuild.class);
+
+  private static final String FOLDER = "iso-builds"; // $NON-NLS-1$
+  private static final int MAX_BUILDS = 20;
+
+  private static final String ISO_PATH = "iso.path"; // $NON-NLS-1$
+  private static final String ISO_LENGTH = "iso.length"; // $NON-NLS-1$
+  private static final String ISO_MODIFIED = "iso.modified"; // $NON-NLS-1$
+  private static final String DICOMDIR_REUSABLE = "dicomdir.reusable"; // $NON-NLS-1$
+  private static final String DICOMDIR_EXTENT = "dicomdir.extent"; // $NON-NLS-1$
+  private static final String SOP_PREFIX = "sop."; // $NON-NLS-1$
+
+  private final File buildsDir;
+  private final File exportDir;
+  // SOP Instance UID => path relative to the root of the disc, length, modification date and path
+  // of the local source file (empty without local source)
+  private final Map<String, String[]> instances = new HashMap<>();
+  private boolean dicomdirReusable = true;
+
+  private Properties previous;
+  private FileChannel previousChannel;
+  private boolean dicomdirReused;
+
+  public IncrementalBuild(File dataFolder, File exportDir) {
+    this.buildsDir = new File(dataFolder, FOLDER);
+    this.exportDir = exportDir;
+  }
+
+  /**
+   * Selects the valid previous image having the most instances in common with the current export.
+   */
+  public void selectPrevious(Set<String> sopInstanceUIDs) {
+    File[] records = buildsDir.listFiles((dir, name) -> name.endsWith(".properties"));
+    if (records == null) {
+      return;
+    }
+    int bestOverlap = 0;
+    for (File record : records) {
+      Properties p = new Properties();
+      FileUtil.readProperties(record, p);
+      File iso = new File(p.getProperty(ISO_PATH, ""));
+      if (!iso.isFile()
+          || !String.valueOf(iso.length()).equals(p.getProperty(ISO_LENGTH))
+          || !String.valueOf(iso.lastModified()).equals(p.getProperty(ISO_MODIFIED))) {
+        continue;
+      }
+      int overlap = 0;
+      int size = 0;
+      for (String key : p.stringPropertyNames()) {
+        if (key.startsWith(SOP_PREFIX)) {
+          size++;
+          if (sopInstanceUIDs.contains(key.substring(SOP_PREFIX.length()))) {
+            overlap++;
+          }
+        }
+      }
+      if (overlap > bestOverlap) {
+        bestOverlap = overlap;
+        previous = p;
+        // The DICOMDIR can be updated only if it does not reference removed files
+        dicomdirReused =
+            overlap == size
+                && Boolean.parseBoolean(p.getProperty(DICOMDIR_REUSABLE))
+                && p.getProperty(DICOMDIR_EXTENT) != null;
+      }
+    }
+
+    if (previous != null) {
+      try {
+        previousChannel =
+            FileChannel.open(
+                new File(previous.getProperty(ISO_PATH)).toPath(), StandardOpenOption.READ);
+        LOGGER.info(
+            "Reuse {} instances from {}", // $NON-NLS-1$
+            bestOverlap,
+            previous.getProperty(ISO_PATH));
+      } catch (IOException e) {
+        LOGGER.warn("Cannot open the previous ISO image", e); // $NON-NLS-1$
+        previous = null;
+        dicomdirReused = false;
+      }
+    }
+  }
+
+  public boolean isDicomdirReused() {
+    return dicomdirReused;
+  }
+
+  /**
+   * Checks an instance of the export before writing the DICOMDIR, the DICOMDIR of the previous
+   * image cannot be reused when one of its instances has changed.
+   *
+   * @param source the local source file, can be null
+   */
+  public void checkInstance(String sopInstanceUID, File source, File destination) {
+    if (isInPreviousDicomdir(sopInstanceUID)
+        && !isUnchanged(sopInstanceUID, source, destination)) {
+      dicomdirReused = false;
+      LOGGER.info("Instance {} has changed, the DICOMDIR is rebuilt", sopInstanceUID);
+    }
+  }
+
+  /**
+   * @return true if the instance of the previous image has the same path and the same local source
+   *     file (path, length and modification date), or has no local source in both exports (the SOP
+   *     Instance UID identifies the content, it is checked with the digest when copying)
+   */
+  private boolean isUnchanged(String sopInstanceUID, File source, File destination) {
+    String[] parts = getRecord(sopInstanceUID);
+    if (parts == null || !parts[0].equals(getRelativePath(destination))) {
+      return false;
+    }
+    if (source == null) {
+      return parts[6].isEmpty();
+    }
+    return parts[4].equals(String.valueOf(source.length()))
+        && parts[5].equals(String.valueOf(source.lastModified()))
+        && parts[6].equals(source.getAbsolutePath());
+  }
+
+  /**
+   * @return path, extent, size and digest in the previous image, length, modification date and
+   *     path of the local source (empty without local source) or null if the instance has no valid
+   *     record
+   */
+  private String[] getRecord(String sopInstanceUID) {
+    if (previous == null || sopInstanceUID == null) {
+      return null;
+    }
+    String value = previous.getProperty(SOP_PREFIX + sopInstanceUID);
+    if (value == null) {
+      return null;
+    }
+    // The source path is the last part, it can contain the separator
+    String[] parts = value.split("\\|", 7); // $NON-NLS-1$
+    return parts.length == 7 ? parts : null;
+  }
+
+  /**
+   * @return true if the instance is already referenced in the DICOMDIR copied from the previous
+   *     image
+   */
+  public boolean isInPreviousDicomdir(String sopInstanceUID) {
+    return dicomdirReused && previous.getProperty(SOP_PREFIX + sopInstanceUID) != null;
+  }
+
+  /** Copies the DICOMDIR of the previous image, the new records are appended by the writer. */
+  public void copyDicomdir(File destination) throws IOException {
+    if (dicomdirReused) {
+      // Not recorded in the manifest, the file is modified afterwards by the DICOMDIR writer
+      try (OutputStream out = new FileOutputStream(destination)) {
+        copyExtent(previous.getProperty(DICOMDIR_EXTENT), out);
+      }
+    }
+  }
+
+  /**
+   * Copies an instance without local source from the extent of the previous image.
+   *
+   * @param source the local source file, an instance with a local source is copied from it
+   * @return false if the instance is not in the previous image, has changed or if the copy does not
+   *     match the recorded digest
+   */
+  public boolean copyInstance(
+      String sopInstanceUID, File source, File destination, ChecksumManifest manifest)
+      throws IOException {
+    if (source != null || !isUnchanged(sopInstanceUID, null, destination)) {
+      return false;
+    }
+    String[] parts = getRecord(sopInstanceUID);
+    try (OutputStream out = manifest.newOutputStream(destination)) {
+      copyExtent(parts[1] + "|" + parts[2], out);
+    }
+    if (!parts[3].equals(manifest.getDigest(destination))) {
+      LOGGER.warn("Digest mismatch of {} in the previous ISO image", sopInstanceUID);
+      manifest.delete(destination);
+      return false;
+    }
+    addInstance(sopInstanceUID, destination, null);
+    return true;
+  }
+
+  private void copyExtent(String extent, OutputStream out) throws IOException {
+    String[] parts = extent.split("\\|"); // $NON-NLS-1$
+    long position = Long.parseLong(parts[0]) * IsoImageReader.SECTOR_SIZE;
+    long remaining = Long.parseLong(parts[1]);
+    WritableByteChannel target = Channels.newChannel(out);
+    ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+    while (remaining > 0) {
+      buffer.clear();
+      buffer.limit((int) Math.min(buffer.capacity(), remaining));
+      int n = previousChannel.read(buffer, position);
+      if (n < 0) {
+        throw new IOException("Unexpected end of the previous ISO image"); // $NON-NLS-1$
+      }
+      buffer.flip();
+      while (buffer.hasRemaining()) {
+        target.write(buffer);
+      }
+      position += n;
+      remaining -= n;
+    }
+  }
+
+  /**
+   * Records an instance written in the export folder, all the instances referenced in the DICOMDIR
+   * must be recorded for reusing it.
+   *
+   * @param source the local source file, can be null
+   */
+  public void addInstance(String sopInstanceUID, File file, File source) {
+    if (sopInstanceUID == null) {
+      dicomdirReusable = false;
+      return;
+    }
+    instances.put(
+        sopInstanceUID,
+        new String[] {
+          getRelativePath(file),
+          source == null ? "" : String.valueOf(source.length()),
+          source == null ? "" : String.valueOf(source.lastModified()),
+          source == null ? "" : source.getAbsolutePath()
+        });
+  }
+
+  /** The DICOMDIR references files which are not recorded (e.g. new presentation states). */
+  public void setDicomdirReusable(boolean dicomdirReusable) {
+    this.dicomdirReusable = dicomdirReusable;
+  }
+
+  /** Records the manifest of the new image with the extents and the digests of its files. */
+  public void save(File isoFile, ChecksumManifest manifest) {
+    Map<String, Entry> entries = new HashMap<>();
+    try (IsoImageReader reader = new IsoImageReader(isoFile)) {
+      for (Entry e : reader.readEntries()) {
+        entries.put(e.getPath().toUpperCase(Locale.ENGLISH), e);
+      }
+    } catch (IOException e) {
+      LOGGER.error("Cannot read the extents of the ISO image", e); // $NON-NLS-1$
+      return;
+    }
+
+    Properties p = new Properties();
+    p.setProperty(ISO_PATH, isoFile.getAbsolutePath());
+    p.setProperty(ISO_LENGTH, String.valueOf(isoFile.length()));
+    p.setProperty(ISO_MODIFIED, String.valueOf(isoFile.lastModified()));
+    Entry dicomdir = entries.get(DiscLayout.DICOMDIR);
+    if (dicomdir != null) {
+      p.setProperty(DICOMDIR_EXTENT, dicomdir.getExtent() + "|" + dicomdir.getSize());
+    }
+    Map<String, String> digests = manifest.getDigests();
+    boolean allRecorded = true;
+    for (Map.Entry<String, String[]> i : instances.entrySet()) {
+      String[] v = i.getValue();
+      Entry e = entries.get(v[0].toUpperCase(Locale.ENGLISH));
+      String digest = digests.get(v[0]);
+      if (e == null || digest == null) {
+        // Referenced in the DICOMDIR but cannot be reused
+        allRecorded = false;
+        continue;
+      }
+      p.setProperty(
+          SOP_PREFIX + i.getKey(),
+          String.join(
+              "|", // $NON-NLS-1$
+              v[0],
+              String.valueOf(e.getExtent()),
+              String.valueOf(e.getSize()),
+              digest,
+              v[1],
+              v[2],
+              v[3]));
+    }
+    p.setProperty(DICOMDIR_REUSABLE, String.valueOf(dicomdirReusable && allRecorded));
+
+    buildsDir.mkdirs();
+    String name = IsoImageExport.makeFileIDs(isoFile.getAbsolutePath()) + ".properties";
+    FileUtil.storeProperties(new File(buildsDir, name), p, null);
+    deleteOldBuilds();
+  }
+
+  private void deleteOldBuilds() {
+    File[] records = buildsDir.listFiles((dir, name) -> name.endsWith(".properties"));
+    if (records != null && records.length > MAX_BUILDS) {
+      Arrays.sort(records, Comparator.comparingLong(File::lastModified).reversed());
+      for (int i = MAX_BUILDS; i < records.length; i++) {
+        try {
+          Files.deleteIfExists(records[i].toPath());
+        } catch (IOException e) {
+          LOGGER.warn("Cannot delete {}", records[i]); // $NON-NLS-1$
+        }
+      }
+    }
+  }
+
+  private String getRelativePath(File file) {
+    return exportDir.toPath().relativize(file.toPath()).toString().replace(File.separatorChar, '/');
+  }
+
+  @Override
+  public void close() {
+    if (previousChannel != null) {
+      try {
+        previousChannel.close();
+      } catch (IOException e) {
+        LOGGER.warn("Cannot close the previous ISO image", e); // $NON-NLS-1$
+      }
+    }
+  }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright (c) 2021 Weasis Team and other contributors.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse
+ * Public License 2.0 which is available at http://www.eclipse.org/legal/epl-2.0, or the Apache
+ * License, Version 2.0 which is available at https://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * SPDX-License-Identifier: EPL-2.0 OR Apache-2.0
+ */
+package org.weasis.isowriter;
+
+import com.github.stephenc.javaisotools.iso9660.ConfigException;
+import com.github.stephenc.javaisotools.iso9660.ISO9660RootDirectory;
+import com.github.stephenc.javaisotools.iso9660.impl.CreateISO;
+import com.github.stephenc.javaisotools.iso9660.impl.ISO9660Config;
+import com.github.stephenc.javaisotools.iso9660.impl.ISOImageFileHandler;
+import com.github.stephenc.javaisotools.joliet.impl.JolietConfig;
+import com.github.stephenc.javaisotools.rockridge.impl.RockRidgeConfig;
+import com.github.stephenc.javaisotools.sabre.HandlerException;
+import com.github.stephenc.javaisotools.sabre.StreamHandler;
+import java.io.File;
+import java.io.FileNotFoundException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.weasis.core.util.FileUtil;
+
+/**
+ * Writing of the ISO image with the java-iso-tools libraries. Their classes are referenced only
+ * from here, so the libraries embedded in the bundle are loaded at the first export and not when
+ * the export page is created.
+ */
+public class IsoImageBuilder {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(IsoImageBuilder.class);
+
+  private IsoImageBuilder() {}
+
+  public static File makeISO(
+      File exportDir, File exportFile, boolean enableRockRidge, boolean enableJoliet) {
+    // ISO file
+    File outfile = exportFile;
+    // Directory hierarchy, starting from the root
+    ISO9660RootDirectory root = new ISO9660RootDirectory();
+
+    try {
+      File[] files = exportDir.listFiles();
+      if (files != null) {
+        for (File file : files) {
+          if (file.exists()) {
+            if (file.isDirectory()) {
+              root.addRecursively(file);
+            } else {
+              root.addFile(file);
+            }
+          }
+        }
+      }
+    } catch (HandlerException e) {
+      LOGGER.error("Error when adding files to ISO", e);
+    }
+
+    try {
+      // ISO9660 support
+      ISO9660Config iso9660Config = new ISO9660Config();
+      iso9660Config.allowASCII(false);
+      iso9660Config.setInterchangeLevel(1);
+      iso9660Config.restrictDirDepthTo8(true);
+      iso9660Config.setPublisher("Weasis");
+      iso9660Config.setVolumeID("DICOM");
+      iso9660Config.setDataPreparer("DICOM");
+      iso9660Config.forceDotDelimiter(false);
+
+      RockRidgeConfig rrConfig = null;
+
+      if (enableRockRidge) {
+        // Rock Ridge support
+        rrConfig = new RockRidgeConfig();
+        rrConfig.setMkisofsCompatibility(false);
+        rrConfig.hideMovedDirectoriesStore(true);
+        rrConfig.forcePortableFilenameCharacterSet(true);
+      }
+
+      JolietConfig jolietConfig = null;
+      if (enableJoliet) {
+        // Joliet support
+        jolietConfig = new JolietConfig();
+        jolietConfig.setPublisher("Weasis");
+        jolietConfig.setVolumeID("DICOM");
+        jolietConfig.setDataPreparer("DICOM");
+        jolietConfig.forceDotDelimiter(false);
+      }
+
+      // Create ISO
+      StreamHandler streamHandler = new ISOImageFileHandler(outfile);
+      CreateISO iso = new CreateISO(streamHandler, root);
+      iso.process(iso9660Config, rrConfig, jolietConfig, null);
+      return outfile;
+
+    } catch (ConfigException | HandlerException | FileNotFoundException e) {
+      LOGGER.error("Error when building ISO", e);
+    } finally {
+      FileUtil.recursiveDelete(exportDir);
+    }
+    return null;
+  }
+}
@@ -9,33 +9,33 @@
  */
 package org.weasis.isowriter;
 
-import com.github.stephenc.javaisotools.iso9660.ConfigException;
-import com.github.stephenc.javaisotools.iso9660.ISO9660RootDirectory;
-import com.github.stephenc.javaisotools.iso9660.impl.CreateISO;
-import com.github.stephenc.javaisotools.iso9660.impl.ISO9660Config;
-import com.github.stephenc.javaisotools.iso9660.impl.ISOImageFileHandler;
-import com.github.stephenc.javaisotools.joliet.impl.JolietConfig;
-import com.github.stephenc.javaisotools.rockridge.impl.RockRidgeConfig;
-import com.github.stephenc.javaisotools.sabre.HandlerException;
-import com.github.stephenc.javaisotools.sabre.StreamHandler;
 import java.awt.BorderLayout;
 import java.awt.Component;
 import java.awt.Dimension;
 import java.awt.GridBagConstraints;
 import java.awt.GridBagLayout;
 import java.awt.Insets;
-import java.awt.image.BufferedImage;
-import java.awt.image.IndexColorModel;
-import java.awt.image.Raster;
+import java.io.ByteArrayInputStream;
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.URL;
+import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
 import javax.swing.Box;
+import javax.swing.JButton;
 import javax.swing.JCheckBox;
 import javax.swing.JFileChooser;
+import javax.swing.JOptionPane;
 import javax.swing.JPanel;
 import javax.swing.JProgressBar;
 import javax.swing.tree.DefaultMutableTreeNode;
@@ -48,8 +48,6 @@ import org.dcm4che3.data.VR;
 import org.dcm4che3.media.DicomDirWriter;
 import org.dcm4che3.media.RecordType;
 import org.dcm4che3.util.UIDUtils;
-import org.opencv.core.MatOfInt;
-import org.opencv.imgcodecs.Imgcodecs;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.weasis.core.api.explorer.ObservableEvent;
@@ -79,20 +77,29 @@ import org.weasis.dicom.explorer.ExportDicom;
 import org.weasis.dicom.explorer.ExportTree;
 import org.weasis.dicom.explorer.pr.DicomPrSerializer;
 import org.weasis.opencv.data.PlanarImage;
-import org.weasis.opencv.op.ImageConversion;
 import org.weasis.opencv.op.ImageProcessor;
 
 public class IsoImageExport extends AbstractItemDialogPage implements ExportDicom {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(IsoImageExport.class);
 
+  private static final int ICON_PALETTE_SIZE = 256;
+  private static final int ICON_CUBE_SIZE = 216;
+  private static final int ICON_GRAY_START = 18;
+  private static final int ICON_GRAY_STEP = 6;
+  private static final byte[][] ICON_PALETTE = buildIconPalette();
+
   private static final String LAST_FOLDER = "last_folder";
   private static final String ADD_JPEG = "add_jpeg";
   private static final String ADD_VIEWER = "add_viewer";
+  private static final String DEIDENTIFY = "deidentify";
+  private static final String VERIFY_ISO = "verify_iso";
 
   private final JCheckBox checkBoxAddWeasisViewer = new JCheckBox("Add Weasis viewer");
   private final JCheckBox checkBoxAddJpeg = new JCheckBox("Add JPEG images");
   private final JCheckBox checkBoxCompression = new JCheckBox("Uncompressed DICOMs");
+  private final JCheckBox checkBoxDeidentify = new JCheckBox("De-identify DICOMs");
+  private final JCheckBox checkBoxVerify = new JCheckBox("Verify ISO image");
   private final DicomModel dicomModel;
   private final ExportTree exportTree;
   private File outputFile;
@@ -144,14 +151,40 @@ public class IsoImageExport extends AbstractItemDialogPage implements ExportDico
     // TODO Add it in Weasis 2.0 plugin
     // panel.add(checkBoxCompression, gbc_checkBoxCompression);
 
+    GridBagConstraints gbcCheckBoxDeidentify = new GridBagConstraints();
+    gbcCheckBoxDeidentify.anchor = GridBagConstraints.NORTHWEST;
+    gbcCheckBoxDeidentify.insets = new Insets(0, 0, 5, 5);
+    gbcCheckBoxDeidentify.gridx = 0;
+    gbcCheckBoxDeidentify.gridy = 1;
+    panel.add(checkBoxDeidentify, gbcCheckBoxDeidentify);
+
+    GridBagConstraints gbcCheckBoxVerify = new GridBagConstraints();
+    gbcCheckBoxVerify.anchor = GridBagConstraints.NORTHWEST;
+    gbcCheckBoxVerify.insets = new Insets(0, 0, 5, 5);
+    gbcCheckBoxVerify.gridx = 1;
+    gbcCheckBoxVerify.gridy = 1;
+    panel.add(checkBoxVerify, gbcCheckBoxVerify);
+
+    JButton buttonArchive = new JButton("Burn a DICOMDIR or a ZIP file...");
+    buttonArchive.addActionListener(e -> exportArchive());
+    GridBagConstraints gbcButtonArchive = new GridBagConstraints();
+    gbcButtonArchive.anchor = GridBagConstraints.NORTHWEST;
+    gbcButtonArchive.insets = new Insets(0, 0, 5, 5);
+    gbcButtonArchive.gridwidth = 2;
+    gbcButtonArchive.gridx = 0;
+    gbcButtonArchive.gridy = 2;
+    panel.add(buttonArchive, gbcButtonArchive);
+
     add(exportTree, BorderLayout.CENTER);
   }
 
   protected void initialize(boolean afirst) {
     if (afirst) {
-      Properties pref = ExportIsoFactory.EXPORT_PERSISTENCE;
+      Properties pref = ExportIsoFactory.getExportPersistence();
       checkBoxAddJpeg.setSelected(Boolean.valueOf(pref.getProperty(ADD_JPEG, "true")));
       checkBoxAddWeasisViewer.setSelected(Boolean.valueOf(pref.getProperty(ADD_VIEWER, "true")));
+      checkBoxDeidentify.setSelected(Boolean.valueOf(pref.getProperty(DEIDENTIFY, "false")));
+      checkBoxVerify.setSelected(Boolean.valueOf(pref.getProperty(VERIFY_ISO, "true")));
     }
   }
 
@@ -184,52 +217,234 @@ public class IsoImageExport extends AbstractItemDialogPage implements ExportDico
       final File exportFile = outputFile.getCanonicalFile();
       ExplorerTask task =
           new ExplorerTask("Exporting...", false) {
+            private List<String> verificationErrors = Collections.emptyList();
+            private int rejectedInstances;
 
             @Override
             protected Boolean doInBackground() throws Exception {
               dicomModel.firePropertyChange(
                   new ObservableEvent(
                       ObservableEvent.BasicAction.LOADING_START, dicomModel, null, this));
+              ExportMetrics metrics = new ExportMetrics();
+              DeidentificationProfile profile =
+                  checkBoxDeidentify.isSelected() ? new DeidentificationProfile() : null;
               File exportDir =
                   FileUtil.createTempDir(AppProperties.buildAccessibleTempDirectory("tmp", "burn"));
-              writeDicom(this, exportDir, model);
+              ChecksumManifest manifest = new ChecksumManifest(exportDir);
+              // The UIDs of a de-identified disc are different at each export
+              File dataFolder = ExportIsoFactory.getDataFolder();
+              IncrementalBuild build =
+                  profile == null && dataFolder != null
+                      ? new IncrementalBuild(dataFolder, exportDir)
+                      : null;
+              try {
+                if (build != null) {
+                  build.selectPrevious(getSopInstanceUIDs(model));
+                }
+                writeDicom(this, exportDir, model, profile, manifest, build, metrics);
+              } finally {
+                if (build != null) {
+                  build.close();
+                }
+              }
               if (checkBoxAddJpeg.isSelected()) {
-                writeJpeg(this, new File(exportDir, "JPEG"), model, true, 90);
+                writeJpeg(
+                    this,
+                    new File(exportDir, DiscLayout.JPEG),
+                    model,
+                    profile,
+                    90,
+                    manifest,
+                    metrics);
               }
               if (checkBoxAddWeasisViewer.isSelected()) {
-                URL url =
-                    ResourceUtil.getResourceURL("lib/weasis-distributions.zip", this.getClass());
-                if (url == null) {
-                  LOGGER.error("Cannot find the embedded portable distribution");
-                } else {
-                  FileUtil.unzip(url.openStream(), exportDir);
-                }
+                addViewer(exportDir, manifest);
+              }
+              if (profile != null) {
+                rejectedInstances = profile.getRejectedInstances();
               }
               if (this.isCancelled()) {
                 return false;
               }
-              makeISO(exportDir, exportFile, true, true);
-
+              verificationErrors = buildIsoImage(exportDir, exportFile, manifest, build, metrics);
               return true;
             }
 
             @Override
             protected void done() {
-              Properties pref = ExportIsoFactory.EXPORT_PERSISTENCE;
-              pref.setProperty(ADD_JPEG, String.valueOf(checkBoxAddJpeg.isSelected()));
-              pref.setProperty(ADD_VIEWER, String.valueOf(checkBoxAddWeasisViewer.isSelected()));
-
+              savePreferences();
               dicomModel.firePropertyChange(
                   new ObservableEvent(
                       ObservableEvent.BasicAction.LOADING_STOP, dicomModel, null, this));
+              showRejectedInstances(rejectedInstances);
+              showVerificationErrors(verificationErrors);
             }
           };
       task.execute();
     }
   }
 
+  /**
+   * Burns the instances of a DICOMDIR media or of a ZIP archive without loading them in the viewer.
+   * Only the headers are parsed, so the JPEG images cannot be added.
+   */
+  public void exportArchive() {
+    File archiveFile = browseArchiveFile();
+    if (archiveFile == null) {
+      return;
+    }
+    browseImgFile();
+    if (outputFile == null) {
+      return;
+    }
+    final File exportFile;
+    try {
+      exportFile = outputFile.getCanonicalFile();
+    } catch (IOException e) {
+      LOGGER.error("Invalid ISO file: {}", outputFile, e); // $NON-NLS-1$
+      return;
+    }
+    ExplorerTask task =
+        new ExplorerTask("Exporting...", false) {
+          private List<String> verificationErrors = Collections.emptyList();
+          private int rejectedInstances;
+          private int skippedFiles;
+
+          @Override
+          protected Boolean doInBackground() throws Exception {
+            dicomModel.firePropertyChange(
+                new ObservableEvent(
+                    ObservableEvent.BasicAction.LOADING_START, dicomModel, null, this));
+            ExportMetrics metrics = new ExportMetrics();
+            DeidentificationProfile profile =
+                checkBoxDeidentify.isSelected() ? new DeidentificationProfile() : null;
+            File exportDir =
+                FileUtil.createTempDir(AppProperties.buildAccessibleTempDirectory("tmp", "burn"));
+            ChecksumManifest manifest = new ChecksumManifest(exportDir);
+            try (ArchiveReader archive = new ArchiveReader(archiveFile)) {
+              writeArchive(this, exportDir, archive, profile, manifest, metrics);
+              skippedFiles = archive.getSkippedFiles();
+            }
+            if (checkBoxAddWeasisViewer.isSelected()) {
+              addViewer(exportDir, manifest);
+            }
+            if (profile != null) {
+              rejectedInstances = profile.getRejectedInstances();
+            }
+            if (this.isCancelled()) {
+              return false;
+            }
+            verificationErrors = buildIsoImage(exportDir, exportFile, manifest, null, metrics);
+            return true;
+          }
+
+          @Override
+          protected void done() {
+            savePreferences();
+            dicomModel.firePropertyChange(
+                new ObservableEvent(
+                    ObservableEvent.BasicAction.LOADING_STOP, dicomModel, null, this));
+            showSkippedFiles(skippedFiles);
+            showRejectedInstances(rejectedInstances);
+            showVerificationErrors(verificationErrors);
+          }
+        };
+    task.execute();
+  }
+
+  private static void addViewer(File exportDir, ChecksumManifest manifest) throws IOException {
+    URL url = ResourceUtil.getResourceURL("lib/weasis-distributions.zip", IsoImageExport.class);
+    if (url == null) {
+      LOGGER.error("Cannot find the embedded portable distribution");
+    } else {
+      manifest.unzip(url.openStream(), exportDir);
+    }
+  }
+
+  /**
+   * @return the errors of the verification, empty when the image is valid or not verified
+   */
+  private List<String> buildIsoImage(
+      File exportDir,
+      File exportFile,
+      ChecksumManifest manifest,
+      IncrementalBuild build,
+      ExportMetrics metrics)
+      throws IOException {
+    List<String> errors = Collections.emptyList();
+    manifest.write();
+    if (IsoImageBuilder.makeISO(exportDir, exportFile, true, true) != null) {
+      if (build != null) {
+        build.save(exportFile, manifest);
+      }
+      if (checkBoxVerify.isSelected()) {
+        errors = new IsoImageVerifier(manifest).verify(exportFile);
+      }
+    }
+    metrics.log();
+    return errors;
+  }
+
+  private void savePreferences() {
+    Properties pref = ExportIsoFactory.getExportPersistence();
+    pref.setProperty(ADD_JPEG, String.valueOf(checkBoxAddJpeg.isSelected()));
+    pref.setProperty(ADD_VIEWER, String.valueOf(checkBoxAddWeasisViewer.isSelected()));
+    pref.setProperty(DEIDENTIFY, String.valueOf(checkBoxDeidentify.isSelected()));
+    pref.setProperty(VERIFY_ISO, String.valueOf(checkBoxVerify.isSelected()));
+  }
+
+  private void showSkippedFiles(int skippedFiles) {
+    if (skippedFiles > 0) {
+      LOGGER.warn("{} file(s) of the archive are not on the disc", skippedFiles); // $NON-NLS-1$
+      JOptionPane.showMessageDialog(
+          this,
+          skippedFiles
+              + " file(s) of the archive are not on the disc:\n"
+              + "not DICOM files or not readable (see the log)",
+          getTitle(),
+          JOptionPane.WARNING_MESSAGE);
+    }
+  }
+
+  private void showRejectedInstances(int rejectedInstances) {
+    if (rejectedInstances > 0) {
+      LOGGER.warn("{} instance(s) cannot be de-identified", rejectedInstances); // $NON-NLS-1$
+      JOptionPane.showMessageDialog(
+          this,
+          rejectedInstances
+              + " instance(s) cannot be de-identified and are not on the disc:\n"
+              + "structured documents or images with burned-in annotations",
+          getTitle(),
+          JOptionPane.WARNING_MESSAGE);
+    }
+  }
+
+  private void showVerificationErrors(List<String> verificationErrors) {
+    if (!verificationErrors.isEmpty()) {
+      JOptionPane.showMessageDialog(
+          this,
+          "The verification of the ISO image has failed (see the log):\n"
+              + verificationErrors.get(0),
+          getTitle(),
+          JOptionPane.ERROR_MESSAGE);
+    }
+  }
+
+  private File browseArchiveFile() {
+    String lastFolder = ExportIsoFactory.getExportPersistence().getProperty(LAST_FOLDER, null);
+    JFileChooser fileChooser = new JFileChooser(lastFolder);
+    fileChooser.setFileSelectionMode(JFileChooser.FILES_ONLY);
+    fileChooser.setMultiSelectionEnabled(false);
+    fileChooser.setDialogTitle("Select a DICOMDIR or a ZIP file");
+    fileChooser.addChoosableFileFilter(new FileFormatFilter("zip", "ZIP"));
+    if (fileChooser.showOpenDialog(this) != JFileChooser.APPROVE_OPTION) {
+      return null;
+    }
+    return fileChooser.getSelectedFile();
+  }
+
   public void browseImgFile() {
-    String lastFolder = ExportIsoFactory.EXPORT_PERSISTENCE.getProperty(LAST_FOLDER, null);
+    String lastFolder = ExportIsoFactory.getExportPersistence().getProperty(LAST_FOLDER, null);
     if (lastFolder == null) {
       lastFolder = System.getProperty("user.home", "");
     }
@@ -249,11 +464,14 @@ public class IsoImageExport extends AbstractItemDialogPage implements ExportDico
       return;
     } else {
       outputFile = file;
-      ExportIsoFactory.EXPORT_PERSISTENCE.setProperty(LAST_FOLDER, file.getParent());
+      ExportIsoFactory.getExportPersistence().setProperty(LAST_FOLDER, file.getParent());
     }
   }
 
-  private static String getinstanceFileName(MediaElement img) {
+  /**
+   * @param profile the de-identification profile replacing the SOP Instance UID, can be null
+   */
+  private static String getinstanceFileName(MediaElement img, DeidentificationProfile profile) {
     Integer instance = TagD.getTagValue(img, Tag.InstanceNumber, Integer.class);
     if (instance != null) {
       String val = instance.toString();
@@ -269,13 +487,29 @@ public class IsoImageExport extends AbstractItemDialogPage implements ExportDico
         return val;
       }
     }
-    return TagD.getTagValue(img, Tag.SOPInstanceUID, String.class);
+    String iuid = TagD.getTagValue(img, Tag.SOPInstanceUID, String.class);
+    return profile == null ? iuid : profile.remapUid(iuid);
   }
 
   private void writeJpeg(
-      ExplorerTask task, File exportDir, CheckTreeModel model, boolean keepNames, int jpegQuality) {
+      ExplorerTask task,
+      File exportDir,
+      CheckTreeModel model,
+      DeidentificationProfile profile,
+      int jpegQuality,
+      ChecksumManifest manifest,
+      ExportMetrics metrics) {
+    // Folder names are built from the patient and study descriptions, or from the new UIDs when
+    // de-identifying (the same IDs as the DICOM folders)
+    boolean keepNames = profile == null;
+    DirectoryPlan plan = null;
+    if (profile != null) {
+      plan = new DirectoryPlan(exportDir, profile);
+      // The folders are created when they are resolved
+      plan.createDirectories();
+    }
 
-    try {
+    try (JpegEncoder encoder = new JpegEncoder(jpegQuality)) {
       synchronized (exportTree) {
         ArrayList<String> seriesGph = new ArrayList<>();
         TreePath[] paths = model.getCheckingPaths();
@@ -292,6 +526,7 @@ public class IsoImageExport extends AbstractItemDialogPage implements ExportDico
           }
         }
 
+        Map<String, File> seriesDirs = new HashMap<>();
         for (TreePath treePath : paths) {
           if (task.isCancelled()) {
             return;
@@ -301,24 +536,31 @@ public class IsoImageExport extends AbstractItemDialogPage implements ExportDico
 
           if (node.getUserObject() instanceof DicomImageElement) {
             DicomImageElement img = (DicomImageElement) node.getUserObject();
+            if (profile != null && hasBurnedInAnnotation(img)) {
+              // Rejected as the DICOM instance, the rendering keeps the annotations
+              continue;
+            }
             // Get instance number instead SOPInstanceUID to handle multiframe
-            String instance = getinstanceFileName(img);
+            String instance = getinstanceFileName(img, profile);
             if (!keepNames) {
               instance = makeFileIDs(instance);
             }
-            String path = buildPath(img, keepNames, node);
-            File destinationDir = new File(exportDir, path);
-            destinationDir.mkdirs();
+            File destinationDir =
+                plan == null
+                    ? getSeriesDirectory(seriesDirs, exportDir, img, keepNames, node)
+                    : plan.getSeriesDirectory(img);
 
             PlanarImage image = img.getImage(null);
             if (image != null) {
               image = img.getRenderedImage(image);
             }
             if (image != null) {
-              File destinationFile = new File(destinationDir, instance + ".jpg"); // $NON-NLS-1$
-
-              MatOfInt map = new MatOfInt(Imgcodecs.IMWRITE_JPEG_QUALITY, jpegQuality);
-              ImageProcessor.writeImage(image.toMat(), destinationFile, map);
+              // The file is created only when the image has been encoded
+              if (encoder.encode(image.toMat())) {
+                File destinationFile = new File(destinationDir, instance + ".jpg"); // $NON-NLS-1$
+                encoder.writeTo(destinationFile, manifest);
+                metrics.addJpegImage();
+              }
             } else {
               LOGGER.error(
                   "Cannot export DICOM file to jpeg: {}", //$NON-NLS-1$
@@ -327,23 +569,24 @@ public class IsoImageExport extends AbstractItemDialogPage implements ExportDico
 
             // Prevent to many files open on Linux (Ubuntu => 1024) and close image stream
             img.removeImageFromCache();
-          } else if (node.getUserObject() instanceof MediaElement
+          } else if (profile == null
+              && node.getUserObject() instanceof MediaElement
               && node.getUserObject() instanceof FileExtractor) {
+            // The extracted documents (PDF...) are not copied when de-identifying
             MediaElement dcm = (MediaElement) node.getUserObject();
             File fileSrc = ((FileExtractor) dcm).getExtractFile();
             if (fileSrc != null) {
               // Get instance number instead SOPInstanceUID to handle multiframe
-              String instance = getinstanceFileName(dcm);
+              String instance = getinstanceFileName(dcm, null);
               if (!keepNames) {
                 instance = makeFileIDs(instance);
               }
-              String path = buildPath(dcm, keepNames, node);
-              File destinationDir = new File(exportDir, path);
-              destinationDir.mkdirs();
+              File destinationDir =
+                  getSeriesDirectory(seriesDirs, exportDir, dcm, keepNames, node);
 
               File destinationFile =
                   new File(destinationDir, instance + FileUtil.getExtension(fileSrc.getName()));
-              FileUtil.nioCopyFile(fileSrc, destinationFile);
+              manifest.copy(fileSrc, destinationFile);
             }
           }
         }
@@ -353,25 +596,101 @@ public class IsoImageExport extends AbstractItemDialogPage implements ExportDico
     }
   }
 
-  private void writeDicom(ExplorerTask task, File exportDir, CheckTreeModel model)
+  private static boolean hasBurnedInAnnotation(MediaElement media) {
+    if (media.getMediaReader() instanceof DcmMediaReader) {
+      Attributes dataset = ((DcmMediaReader) media.getMediaReader()).getDicomObject();
+      return dataset != null && DeidentificationProfile.hasBurnedInAnnotation(dataset);
+    }
+    return false;
+  }
+
+  private Set<String> getSopInstanceUIDs(CheckTreeModel model) {
+    Set<String> uids = new HashSet<>();
+    synchronized (exportTree) {
+      for (TreePath treePath : model.getCheckingPaths()) {
+        DefaultMutableTreeNode node = (DefaultMutableTreeNode) treePath.getLastPathComponent();
+        if (node.getUserObject() instanceof MediaElement) {
+          String iuid =
+              TagD.getTagValue(
+                  (MediaElement) node.getUserObject(), Tag.SOPInstanceUID, String.class);
+          if (iuid != null) {
+            uids.add(iuid);
+          }
+        }
+      }
+    }
+    return uids;
+  }
+
+  private static File getSeriesDirectory(
+      Map<String, File> seriesDirs,
+      File exportDir,
+      MediaElement media,
+      boolean keepNames,
+      DefaultMutableTreeNode node) {
+    // Build the path and create the folder only once per series
+    String seriesUID = TagD.getTagValue(media, Tag.SeriesInstanceUID, String.class);
+    return seriesDirs.computeIfAbsent(
+        String.valueOf(seriesUID),
+        k -> {
+          File dir = new File(exportDir, buildPath(media, keepNames, node));
+          dir.mkdirs();
+          return dir;
+        });
+  }
+
+  private void writeDicom(
+      ExplorerTask task,
+      File exportDir,
+      CheckTreeModel model,
+      DeidentificationProfile profile,
+      ChecksumManifest manifest,
+      IncrementalBuild build,
+      ExportMetrics metrics)
       throws IOException {
-    boolean keepNames = false;
     boolean writeDicomdir = true;
-    boolean cdCompatible = true;
 
     File writeDir = exportDir;
+    DirectoryPlan plan = new DirectoryPlan(new File(writeDir, DiscLayout.DICOM), profile);
 
     DicomDirWriter writer = null;
+    SourcePrefetcher prefetcher = null;
     try {
-
-      if (writeDicomdir) {
-        File dcmdirFile = new File(writeDir, "DICOMDIR"); // $NON-NLS-1$
-        writer = DicomDirLoader.open(dcmdirFile);
-      }
-
       synchronized (exportTree) {
-        ArrayList<String> uids = new ArrayList<>();
         TreePath[] paths = model.getCheckingPaths();
+        // Resolve all the folders and file IDs before writing and collect the sources to read
+        Set<File> sources = new LinkedHashSet<>();
+        for (TreePath treePath : paths) {
+          Object userObject =
+              ((DefaultMutableTreeNode) treePath.getLastPathComponent()).getUserObject();
+          if (userObject instanceof MediaElement) {
+            MediaElement media = (MediaElement) userObject;
+            File destinationFile = plan.getInstanceFile(media);
+            String sopUid = TagD.getTagValue(media, Tag.SOPInstanceUID, String.class);
+            // Same source file as in writeInstance()
+            File source = media.getFileCache().getFinalFile();
+            boolean localSource = source != null && source.canRead();
+            if (build != null) {
+              build.checkInstance(sopUid, localSource ? source : null, destinationFile);
+            }
+            if (localSource) {
+              sources.add(source);
+            }
+          }
+        }
+        plan.createDirectories();
+
+        if (writeDicomdir) {
+          File dcmdirFile = new File(writeDir, DiscLayout.DICOMDIR);
+          if (build != null) {
+            // Only when all the instances of the previous DICOMDIR are unchanged
+            build.copyDicomdir(dcmdirFile);
+          }
+          writer = DicomDirLoader.open(dcmdirFile);
+        }
+        prefetcher = new SourcePrefetcher(new ArrayList<>(sources), metrics);
+
+        Set<String> uids = new HashSet<>();
         for (TreePath treePath : paths) {
           if (task.isCancelled()) {
             return;
@@ -382,24 +701,25 @@ public class IsoImageExport extends AbstractItemDialogPage implements ExportDico
           if (node.getUserObject() instanceof DicomImageElement) {
             DicomImageElement img = (DicomImageElement) node.getUserObject();
             String iuid = TagD.getTagValue(img, Tag.SOPInstanceUID, String.class);
-            int index = uids.indexOf(iuid);
-            if (index == -1) {
-              uids.add(iuid);
-            } else {
+            if (!uids.add(iuid)) {
               // Write only once the file for multiframe
               continue;
             }
-            if (!keepNames) {
-              iuid = makeFileIDs(iuid);
-            }
-
-            String path = buildPath(img, keepNames, writeDicomdir, cdCompatible, node);
-            File destinationDir = new File(writeDir, path);
-            destinationDir.mkdirs();
 
-            File destinationFile = new File(destinationDir, iuid);
-            if (img.saveToFile(destinationFile)) {
-              writeInDicomDir(writer, img, node, iuid, destinationFile);
+            File destinationFile = plan.getInstanceFile(img);
+            iuid = destinationFile.getName();
+            if (writeInstance(
+                writer,
+                img,
+                node,
+                iuid,
+                destinationFile,
+                profile,
+                manifest,
+                build,
+                prefetcher,
+                metrics)) {
+              metrics.addDicomInstance();
             } else {
               LOGGER.error(
                   "Cannot export DICOM file: {}", //$NON-NLS-1$
@@ -407,18 +727,20 @@ public class IsoImageExport extends AbstractItemDialogPage implements ExportDico
             }
           } else if (node.getUserObject() instanceof MediaElement) {
             MediaElement dcm = (MediaElement) node.getUserObject();
-            String iuid = TagD.getTagValue(dcm, Tag.SOPInstanceUID, String.class);
-            if (!keepNames) {
-              iuid = makeFileIDs(iuid);
-            }
-
-            String path = buildPath(dcm, keepNames, writeDicomdir, cdCompatible, node);
-            File destinationDir = new File(writeDir, path);
-            destinationDir.mkdirs();
-
-            File destinationFile = new File(destinationDir, iuid);
-            if (dcm.saveToFile(destinationFile)) {
-              writeInDicomDir(writer, dcm, node, iuid, destinationFile);
+            File destinationFile = plan.getInstanceFile(dcm);
+            String iuid = destinationFile.getName();
+            if (writeInstance(
+                writer,
+                dcm,
+                node,
+                iuid,
+                destinationFile,
+                profile,
+                manifest,
+                build,
+                prefetcher,
+                metrics)) {
+              metrics.addDicomInstance();
             }
           } else if (node.getUserObject() instanceof Series) {
             MediaSeries<?> s = (MediaSeries<?>) node.getUserObject();
@@ -429,9 +751,11 @@ public class IsoImageExport extends AbstractItemDialogPage implements ExportDico
                 for (MediaElement dcm : series.getMedias(null, null)) {
                   GraphicModel grModel = (GraphicModel) dcm.getTagValue(TagW.PresentationModel);
                   if (grModel != null && grModel.hasSerializableGraphics()) {
-                    String path = buildPath(dcm, keepNames, writeDicomdir, cdCompatible, node);
-                    buildAndWritePR(
-                        dcm, keepNames, new File(writeDir, path), writer, node, seriesInstanceUID);
+                    if (build != null) {
+                      // New PR files at each export, the DICOMDIR cannot be reused later
+                      build.setDicomdirReusable(false);
+                    }
+                    buildAndWritePR(dcm, plan, writer, node, seriesInstanceUID, profile);
                   }
                 }
               }
@@ -444,6 +768,9 @@ public class IsoImageExport extends AbstractItemDialogPage implements ExportDico
     } catch (Exception e) {
       LOGGER.error("Cannot export DICOM", e); // $NON-NLS-1$
     } finally {
+      if (prefetcher != null) {
+        prefetcher.close();
+      }
       if (writer != null) {
         // Commit DICOMDIR changes and close the file
         writer.close();
@@ -451,6 +778,165 @@ public class IsoImageExport extends AbstractItemDialogPage implements ExportDico
     }
   }
 
+  private static void writeArchive(
+      ExplorerTask task,
+      File exportDir,
+      ArchiveReader archive,
+      DeidentificationProfile profile,
+      ChecksumManifest manifest,
+      ExportMetrics metrics)
+      throws IOException {
+    List<ArchiveReader.Instance> instances = archive.readInstances();
+    DirectoryPlan plan = new DirectoryPlan(new File(exportDir, DiscLayout.DICOM), profile);
+    for (ArchiveReader.Instance instance : instances) {
+      plan.getInstanceFile(instance.getAttributes());
+    }
+    plan.createDirectories();
+
+    DicomDirWriter writer = DicomDirLoader.open(new File(exportDir, DiscLayout.DICOMDIR));
+    try {
+      for (ArchiveReader.Instance instance : instances) {
+        if (task.isCancelled()) {
+          return;
+        }
+        Attributes dataset = instance.getAttributes();
+        File destinationFile = plan.getInstanceFile(dataset);
+        try {
+          if (profile == null) {
+            // The digest is computed while copying
+            try (InputStream in = instance.openStream()) {
+              manifest.copy(in, destinationFile);
+            }
+          } else {
+            try (OutputStream out = manifest.newOutputStream(destinationFile)) {
+              dataset =
+                  instance.getFile() == null
+                      ? profile.write(instance.openStream(), out)
+                      : profile.write(instance.getFile(), out);
+            }
+          }
+        } catch (IOException e) {
+          LOGGER.error("Cannot export DICOM file: {}", instance, e); // $NON-NLS-1$
+          manifest.delete(destinationFile);
+          continue;
+        }
+        writeInDicomDir(writer, dataset, null, destinationFile.getName(), destinationFile);
+        metrics.addDicomInstance();
+      }
+    } finally {
+      // Commit DICOMDIR changes and close the file
+      writer.close();
+    }
+  }
+
+  private static boolean writeInstance(
+      DicomDirWriter writer,
+      MediaElement media,
+      DefaultMutableTreeNode node,
+      String iuid,
+      File destinationFile,
+      DeidentificationProfile profile,
+      ChecksumManifest manifest,
+      IncrementalBuild build,
+      SourcePrefetcher prefetcher,
+      ExportMetrics metrics)
+      throws IOException {
+    // Same file as the one written by saveToFile(), the transformed file when it exists
+    File source = media.getFileCache().getFinalFile();
+    boolean localSource = source != null && source.canRead();
+    File localFile = localSource ? source : null;
+    String sopUid = TagD.getTagValue(media, Tag.SOPInstanceUID, String.class);
+    // Already referenced in the DICOMDIR updated from a previous image
+    boolean inDicomdir = build != null && build.isInPreviousDicomdir(sopUid);
+    if (build != null) {
+      try {
+        if (build.copyInstance(sopUid, localFile, destinationFile, manifest)) {
+          if (!inDicomdir) {
+            writeInDicomDir(writer, media, node, iuid, destinationFile);
+          }
+          return true;
+        }
+      } catch (IOException e) {
+        LOGGER.warn("Cannot copy from the previous ISO image: {}", destinationFile, e);
+      }
+    }
+
+    if (profile == null && !localSource) {
+      // No local file, the media reader writes the copy. Its digest requires reading the file
+      // again, which is cheaper than writing a temporary file and copying it.
+      long start = System.nanoTime();
+      boolean saved = media.saveToFile(destinationFile);
+      metrics.addDirectRead(System.nanoTime() - start);
+      if (saved) {
+        manifest.add(destinationFile);
+        if (build != null) {
+          build.addInstance(sopUid, destinationFile, null);
+        }
+        if (!inDicomdir) {
+          writeInDicomDir(writer, media, node, iuid, destinationFile);
+        }
+        return true;
+      }
+      return false;
+    }
+
+    File tmp = null;
+    Attributes dataset = null;
+    byte[] data = null;
+    long start = System.nanoTime();
+    try {
+      if (!localSource) {
+        tmp = File.createTempFile("dcm", null, destinationFile.getParentFile()); // $NON-NLS-1$
+        if (!media.saveToFile(tmp)) {
+          return false;
+        }
+        source = tmp;
+      }
+      // Content read ahead by the prefetcher or null when the file must be read here
+      if (tmp == null && prefetcher != null) {
+        data = prefetcher.take(source);
+        // Synchronous read of the source when not prefetched, the writing waits for it
+        start = System.nanoTime();
+      }
+      if (profile == null) {
+        // The digest is computed while copying
+        if (data == null) {
+          manifest.copy(source, destinationFile);
+        } else {
+          manifest.copy(new ByteArrayInputStream(data), destinationFile);
+        }
+      } else {
+        try (OutputStream out = manifest.newOutputStream(destinationFile)) {
+          dataset =
+              data == null
+                  ? profile.write(source, out)
+                  : profile.write(new ByteArrayInputStream(data), out);
+        }
+      }
+    } catch (IOException e) {
+      LOGGER.error("Cannot write DICOM file: {}", destinationFile, e); // $NON-NLS-1$
+      manifest.delete(destinationFile);
+      return false;
+    } finally {
+      if (tmp != null) {
+        Files.deleteIfExists(tmp.toPath());
+      }
+    }
+
+    if (data == null) {
+      metrics.addDirectRead(System.nanoTime() - start);
+    }
+    if (build != null) {
+      build.addInstance(sopUid, destinationFile, localFile);
+    }
+    if (dataset != null) {
+      writeInDicomDir(writer, dataset, node, iuid, destinationFile);
+    } else if (!inDicomdir) {
+      writeInDicomDir(writer, media, node, iuid, destinationFile);
+    }
+    return true;
+  }
+
   public static Attributes buildAndWritePR(
       MediaElement img,
       boolean keepNames,
@@ -458,6 +944,32 @@ public class IsoImageExport extends AbstractItemDialogPage implements ExportDico
       DicomDirWriter writer,
       DefaultMutableTreeNode node,
       String seriesInstanceUID) {
+    String prUid = UIDUtils.createUID();
+    File outputFile = new File(destinationDir, keepNames ? prUid : makeFileIDs(prUid));
+    return buildAndWritePR(img, outputFile, prUid, writer, node, seriesInstanceUID, null);
+  }
+
+  /** Writes the PR in the series folder of the image, with a file ID unique in this folder. */
+  public static Attributes buildAndWritePR(
+      MediaElement img,
+      DirectoryPlan plan,
+      DicomDirWriter writer,
+      DefaultMutableTreeNode node,
+      String seriesInstanceUID,
+      DeidentificationProfile profile) {
+    String prUid = UIDUtils.createUID();
+    return buildAndWritePR(
+        img, plan.getInstanceFile(img, prUid), prUid, writer, node, seriesInstanceUID, profile);
+  }
+
+  private static Attributes buildAndWritePR(
+      MediaElement img,
+      File outputFile,
+      String prUid,
+      DicomDirWriter writer,
+      DefaultMutableTreeNode node,
+      String seriesInstanceUID,
+      DeidentificationProfile profile) {
     Attributes imgAttributes =
         img.getMediaReader() instanceof DcmMediaReader
             ? ((DcmMediaReader) img.getMediaReader()).getDicomObject()
@@ -465,12 +977,13 @@ public class IsoImageExport extends AbstractItemDialogPage implements ExportDico
     if (imgAttributes != null) {
       GraphicModel grModel = (GraphicModel) img.getTagValue(TagW.PresentationModel);
       if (grModel != null && grModel.hasSerializableGraphics()) {
-        String prUid = UIDUtils.createUID();
-        File outputFile = new File(destinationDir, keepNames ? prUid : makeFileIDs(prUid));
-        destinationDir.mkdirs();
+        outputFile.getParentFile().mkdirs();
+        // The PR references the de-identified image and copies its patient and study modules
+        Attributes refAttributes =
+            profile == null ? imgAttributes : profile.apply(new Attributes(imgAttributes));
         Attributes prAttributes =
             DicomPrSerializer.writePresentation(
-                grModel, imgAttributes, outputFile, seriesInstanceUID, prUid);
+                grModel, refAttributes, outputFile, seriesInstanceUID, prUid);
         if (prAttributes != null) {
           try {
             writeInDicomDir(writer, prAttributes, node, outputFile.getName(), outputFile);
@@ -501,7 +1014,7 @@ public class IsoImageExport extends AbstractItemDialogPage implements ExportDico
       }
     } else {
       if (cdCompatible) {
-        buffer.append("DICOM"); // $NON-NLS-1$
+        buffer.append(DiscLayout.DICOM);
         buffer.append(File.separator);
       }
       buffer.append(makeFileIDs((String) img.getTagValue(TagW.PatientPseudoUID)));
@@ -611,7 +1124,9 @@ public class IsoImageExport extends AbstractItemDialogPage implements ExportDico
            * Icon Image Sequence (0088,0200).This Icon Image is representative of the Series. It may or may
            * not correspond to one of the images of the Series.
            */
-          if (seriesRec != null && node.getParent() instanceof DefaultMutableTreeNode) {
+          if (seriesRec != null
+              && node != null
+              && node.getParent() instanceof DefaultMutableTreeNode) {
             Object userObject = ((DefaultMutableTreeNode) node.getParent()).getUserObject();
             if (userObject instanceof DicomSeries) {
               DicomImageElement midImage =
@@ -651,73 +1166,53 @@ public class IsoImageExport extends AbstractItemDialogPage implements ExportDico
     return null;
   }
 
-  private File makeISO(
-      File exportDir, File exportFile, boolean enableRockRidge, boolean enableJoliet) {
-    // ISO file
-    File outfile = exportFile;
-    // Directory hierarchy, starting from the root
-    ISO9660RootDirectory root = new ISO9660RootDirectory();
-
-    try {
-      File[] files = exportDir.listFiles();
-      if (files != null) {
-        for (File file : files) {
-          if (file.exists()) {
-            if (file.isDirectory()) {
-              root.addRecursively(file);
-            } else {
-              root.addFile(file);
-            }
-          }
+  /**
+   * @return the palette of the color icons (red, green and blue tables): a 6x6x6 color cube and 40
+   *     gray levels, as the default palette of BufferedImage.TYPE_BYTE_INDEXED
+   */
+  private static byte[][] buildIconPalette() {
+    byte[][] palette = new byte[3][ICON_PALETTE_SIZE];
+    int i = 0;
+    for (int r = 0; r < 256; r += 51) {
+      for (int g = 0; g < 256; g += 51) {
+        for (int b = 0; b < 256; b += 51) {
+          palette[0][i] = (byte) r;
+          palette[1][i] = (byte) g;
+          palette[2][i] = (byte) b;
+          i++;
         }
       }
-    } catch (HandlerException e) {
-      LOGGER.error("Error when adding files to ISO", e);
     }
+    for (int k = 0; i < ICON_PALETTE_SIZE; i++, k++) {
+      byte gray = (byte) (ICON_GRAY_START + ICON_GRAY_STEP * k);
+      palette[0][i] = gray;
+      palette[1][i] = gray;
+      palette[2][i] = gray;
+    }
+    return palette;
+  }
 
-    try {
-      // ISO9660 support
-      ISO9660Config iso9660Config = new ISO9660Config();
-      iso9660Config.allowASCII(false);
-      iso9660Config.setInterchangeLevel(1);
-      iso9660Config.restrictDirDepthTo8(true);
-      iso9660Config.setPublisher("Weasis");
-      iso9660Config.setVolumeID("DICOM");
-      iso9660Config.setDataPreparer("DICOM");
-      iso9660Config.forceDotDelimiter(false);
-
-      RockRidgeConfig rrConfig = null;
-
-      if (enableRockRidge) {
-        // Rock Ridge support
-        rrConfig = new RockRidgeConfig();
-        rrConfig.setMkisofsCompatibility(false);
-        rrConfig.hideMovedDirectoriesStore(true);
-        rrConfig.forcePortableFilenameCharacterSet(true);
-      }
-
-      JolietConfig jolietConfig = null;
-      if (enableJoliet) {
-        // Joliet support
-        jolietConfig = new JolietConfig();
-        jolietConfig.setPublisher("Weasis");
-        jolietConfig.setVolumeID("DICOM");
-        jolietConfig.setDataPreparer("DICOM");
-        jolietConfig.forceDotDelimiter(false);
-      }
-
-      // Create ISO
-      StreamHandler streamHandler = new ISOImageFileHandler(outfile);
-      CreateISO iso = new CreateISO(streamHandler, root);
-      iso.process(iso9660Config, rrConfig, jolietConfig, null);
-      return outfile;
+  /**
+   * @return the index of the nearest color of the icon palette, the nearest color of the cube or
+   *     the nearest gray level
+   */
+  private static int getPaletteIndex(int r, int g, int b) {
+    int rc = (r + 25) / 51;
+    int gc = (g + 25) / 51;
+    int bc = (b + 25) / 51;
+    int cubeError = square(r - rc * 51) + square(g - gc * 51) + square(b - bc * 51);
+
+    int avg = (r + g + b) / 3;
+    int k = (avg - ICON_GRAY_START + ICON_GRAY_STEP / 2) / ICON_GRAY_STEP;
+    k = Math.max(0, Math.min(ICON_PALETTE_SIZE - ICON_CUBE_SIZE - 1, k));
+    int gray = ICON_GRAY_START + ICON_GRAY_STEP * k;
+    int grayError = square(r - gray) + square(g - gray) + square(b - gray);
+
+    return grayError < cubeError ? ICON_CUBE_SIZE + k : rc * 36 + gc * 6 + bc;
+  }
 
-    } catch (ConfigException | HandlerException | FileNotFoundException e) {
-      LOGGER.error("Error when building ISO", e);
-    } finally {
-      FileUtil.recursiveDelete(exportDir);
-    }
-    return null;
+  private static int square(int value) {
+    return value * value;
   }
 
   public static Attributes mkIconItem(DicomImageElement image) {
@@ -749,29 +1244,22 @@ public class IsoImageExport extends AbstractItemDialogPage implements ExportDico
     Attributes iconItem = new Attributes();
 
     if ("PALETTE COLOR".equals(pmi)) { // $NON-NLS-1$
-      BufferedImage bi =
-          ImageConversion.convertTo(
-              ImageConversion.toBufferedImage(thumbnail), BufferedImage.TYPE_BYTE_INDEXED);
-      IndexColorModel cm = (IndexColorModel) bi.getColorModel();
-      int[] lutDesc = {cm.getMapSize(), 0, 8};
-      byte[] r = new byte[lutDesc[0]];
-      byte[] g = new byte[lutDesc[0]];
-      byte[] b = new byte[lutDesc[0]];
-      cm.getReds(r);
-      cm.getGreens(g);
-      cm.getBlues(b);
+      int[] lutDesc = {ICON_PALETTE_SIZE, 0, 8};
       iconItem.setInt(Tag.RedPaletteColorLookupTableDescriptor, VR.US, lutDesc);
       iconItem.setInt(Tag.GreenPaletteColorLookupTableDescriptor, VR.US, lutDesc);
       iconItem.setInt(Tag.BluePaletteColorLookupTableDescriptor, VR.US, lutDesc);
-      iconItem.setBytes(Tag.RedPaletteColorLookupTableData, VR.OW, r);
-      iconItem.setBytes(Tag.GreenPaletteColorLookupTableData, VR.OW, g);
-      iconItem.setBytes(Tag.BluePaletteColorLookupTableData, VR.OW, b);
-
-      Raster raster = bi.getRaster();
-      for (int y = 0, i = 0; y < h; ++y) {
-        for (int x = 0; x < w; ++x, ++i) {
-          iconPixelData[i] = (byte) raster.getSample(x, y, 0);
-        }
+      iconItem.setBytes(Tag.RedPaletteColorLookupTableData, VR.OW, ICON_PALETTE[0].clone());
+      iconItem.setBytes(Tag.GreenPaletteColorLookupTableData, VR.OW, ICON_PALETTE[1].clone());
+      iconItem.setBytes(Tag.BluePaletteColorLookupTableData, VR.OW, ICON_PALETTE[2].clone());
+
+      // The indices are computed from the pixels of the thumbnail, without BufferedImage
+      int channels = thumbnail.channels();
+      byte[] pixels = new byte[w * h * channels];
+      thumbnail.get(0, 0, pixels);
+      for (int i = 0, p = 0; i < iconPixelData.length; i++, p += channels) {
+        // BGR order of OpenCV
+        iconPixelData[i] =
+            (byte) getPaletteIndex(pixels[p + 2] & 0xff, pixels[p + 1] & 0xff, pixels[p] & 0xff);
       }
     } else {
       pmi = "MONOCHROME2"; // $NON-NLS-1$
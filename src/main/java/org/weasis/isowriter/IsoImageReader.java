@@ -0,0 +1,193 @@
+/*
+ * Copyright (c) 2021 Weasis Team and other contributors.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse
+ * Public License 2.0 which is available at http://www.eclipse.org/legal/epl-2.0, or the Apache
+ * License, Version 2.0 which is available at https://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * SPDX-License-Identifier: EPL-2.0 OR Apache-2.0
+ */
+package org.weasis.isowriter;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Minimal reader of the directory hierarchy of an ISO 9660 image. It gives the location (extent)
+ * of each file on the image, the Joliet hierarchy is used when available to get the original file
+ * names.
+ */
+public class IsoImageReader implements Closeable {
+
+  public static final int SECTOR_SIZE = 2048;
+
+  private static final int FIRST_VOLUME_DESCRIPTOR = 16;
+  private static final int ROOT_RECORD_OFFSET = 156;
+
+  private final FileChannel channel;
+
+  public IsoImageReader(File isoFile) throws IOException {
+    this.channel = FileChannel.open(isoFile.toPath(), StandardOpenOption.READ);
+  }
+
+  public FileChannel getChannel() {
+    return channel;
+  }
+
+  /**
+   * @return all the files of the image in the order of the directory records
+   */
+  public List<Entry> readEntries() throws IOException {
+    ByteBuffer rootRecord = null;
+    boolean joliet = false;
+    for (int sector = FIRST_VOLUME_DESCRIPTOR; ; sector++) {
+      ByteBuffer vd = read((long) sector * SECTOR_SIZE, SECTOR_SIZE);
+      if (vd.get(1) != 'C' || vd.get(2) != 'D' || vd.get(3) != '0' || vd.get(4) != '0') {
+        throw new IOException("Not an ISO 9660 image"); // $NON-NLS-1$
+      }
+      int type = vd.get(0) & 0xff;
+      if (type == 255) {
+        break;
+      }
+      if ((type == 1 && rootRecord == null) || (type == 2 && isJoliet(vd))) {
+        rootRecord = slice(vd, ROOT_RECORD_OFFSET, 34);
+        joliet = type == 2;
+      }
+    }
+    if (rootRecord == null) {
+      throw new IOException("No primary volume descriptor"); // $NON-NLS-1$
+    }
+
+    List<Entry> entries = new ArrayList<>();
+    readDirectory(getExtent(rootRecord, 0), getSize(rootRecord, 0), "", joliet, entries);
+    return entries;
+  }
+
+  private void readDirectory(long extent, long size, String path, boolean joliet, List<Entry> list)
+      throws IOException {
+    ByteBuffer dir = read(extent * SECTOR_SIZE, (int) size);
+    int offset = 0;
+    while (offset < size) {
+      int length = dir.get(offset) & 0xff;
+      if (length == 0) {
+        // Records do not cross sectors, go to the next one
+        offset = (offset / SECTOR_SIZE + 1) * SECTOR_SIZE;
+        continue;
+      }
+      int nameLength = dir.get(offset + 32) & 0xff;
+      boolean self = nameLength == 1 && (dir.get(offset + 33) == 0 || dir.get(offset + 33) == 1);
+      if (!self) {
+        byte[] id = new byte[nameLength];
+        for (int i = 0; i < nameLength; i++) {
+          id[i] = dir.get(offset + 33 + i);
+        }
+        String name = getName(id, joliet);
+        boolean isDirectory = (dir.get(offset + 25) & 0x02) != 0;
+        if (isDirectory) {
+          readDirectory(
+              getExtent(dir, offset), getSize(dir, offset), path + name + "/", joliet, list);
+        } else {
+          list.add(new Entry(path + name, getExtent(dir, offset), getSize(dir, offset)));
+        }
+      }
+      offset += length;
+    }
+  }
+
+  public ByteBuffer read(long position, int length) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer, position + buffer.position()) < 0) {
+        throw new IOException("Unexpected end of ISO image"); // $NON-NLS-1$
+      }
+    }
+    buffer.flip();
+    return buffer;
+  }
+
+  @Override
+  public void close() throws IOException {
+    channel.close();
+  }
+
+  private static boolean isJoliet(ByteBuffer vd) {
+    return vd.get(88) == 0x25
+        && vd.get(89) == 0x2F
+        && (vd.get(90) == 0x40 || vd.get(90) == 0x43 || vd.get(90) == 0x45);
+  }
+
+  private static ByteBuffer slice(ByteBuffer buffer, int offset, int length) {
+    ByteBuffer b = buffer.duplicate();
+    b.position(offset);
+    b.limit(offset + length);
+    return b.slice().order(ByteOrder.LITTLE_ENDIAN);
+  }
+
+  private static long getExtent(ByteBuffer record, int offset) {
+    return record.getInt(offset + 2) & 0xffffffffL;
+  }
+
+  private static long getSize(ByteBuffer record, int offset) {
+    return record.getInt(offset + 10) & 0xffffffffL;
+  }
+
+  private static String getName(byte[] id, boolean joliet) {
+    String name =
+        new String(id, joliet ? StandardCharsets.UTF_16BE : StandardCharsets.US_ASCII).trim();
+    int index = name.lastIndexOf(';');
+    if (index >= 0) {
+      name = name.substring(0, index);
+    }
+    if (name.endsWith(".")) {
+      name = name.substring(0, name.length() - 1);
+    }
+    return name;
+  }
+
+  public static final class Entry {
+    private final String path;
+    private final long extent;
+    private final long size;
+
+    public Entry(String path, long extent, long size) {
+      this.path = path;
+      this.extent = extent;
+      this.size = size;
+    }
+
+    /**
+     * @return the path relative to the root of the image with '/' as separator
+     */
+    public String getPath() {
+      return path;
+    }
+
+    /**
+     * @return the logical block address of the first sector
+     */
+    public long getExtent() {
+      return extent;
+    }
+
+    public long getSize() {
+      return size;
+    }
+
+    public long getSectors() {
+      return (size + SECTOR_SIZE - 1) / SECTOR_SIZE;
+    }
+
+    @Override
+    public String toString() {
+      return path;
+    }
+  }
+}
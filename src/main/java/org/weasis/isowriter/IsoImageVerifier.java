@@ -0,0 +1,170 @@
+/*
+ * Copyright (c) 2021 Weasis Team and other contributors.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse
+ * Public License 2.0 which is available at http://www.eclipse.org/legal/epl-2.0, or the Apache
+ * License, Version 2.0 which is available at https://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * SPDX-License-Identifier: EPL-2.0 OR Apache-2.0
+ */
+package org.weasis.isowriter;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Sequence;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.io.DicomInputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.weasis.isowriter.IsoImageReader.Entry;
+
+/**
+ * Verification of a built ISO image: the extents of all the files are read in parallel through the
+ * channel of the image and checked against the digests of the manifest, then the DICOMDIR is parsed
+ * and its references are resolved in the image. The image is not memory-mapped, a mapping would
+ * keep the file locked on Windows until it is garbage collected.
+ */
+public class IsoImageVerifier {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(IsoImageVerifier.class);
+
+  private static final int BUFFER_SIZE = 1024 * 1024;
+
+  private final ChecksumManifest manifest;
+
+  public IsoImageVerifier(ChecksumManifest manifest) {
+    this.manifest = manifest;
+  }
+
+  /**
+   * @return the list of errors, empty when the image is valid
+   */
+  public List<String> verify(File isoFile) {
+    long start = System.nanoTime();
+    List<String> errors = Collections.synchronizedList(new ArrayList<>());
+    try (IsoImageReader reader = new IsoImageReader(isoFile)) {
+      Map<String, Entry> entries = new HashMap<>();
+      for (Entry e : reader.readEntries()) {
+        entries.put(getKey(e.getPath()), e);
+      }
+      FileChannel channel = reader.getChannel();
+      // One buffer per worker, reused for all the files it reads
+      Queue<ByteBuffer> buffers = new ConcurrentLinkedQueue<>();
+
+      Map<String, String> digests = manifest.getDigests();
+      digests
+          .entrySet()
+          .parallelStream()
+          .forEach(
+              d -> {
+                Entry e = entries.get(getKey(d.getKey()));
+                if (e == null) {
+                  errors.add("Missing file: " + d.getKey());
+                  return;
+                }
+                ByteBuffer buffer = buffers.poll();
+                if (buffer == null) {
+                  buffer = ByteBuffer.allocate(BUFFER_SIZE);
+                }
+                try {
+                  if (!d.getValue().equals(digest(channel, e, buffer))) {
+                    errors.add("Corrupted file: " + d.getKey());
+                  }
+                } catch (IOException ex) {
+                  errors.add("Cannot read file: " + d.getKey() + " " + ex.getMessage());
+                } finally {
+                  buffers.add(buffer);
+                }
+              });
+
+      Entry dicomdir = entries.get(getKey(DiscLayout.DICOMDIR));
+      if (dicomdir != null) {
+        verifyDicomdir(reader, dicomdir, entries, errors);
+      }
+    } catch (IOException e) {
+      errors.add("Cannot read the ISO image: " + e.getMessage());
+    }
+
+    LOGGER.info(
+        "ISO verification of {} files in {} ms: {} error(s)", // $NON-NLS-1$
+        manifest.getDigests().size(),
+        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start),
+        errors.size());
+    for (String error : errors) {
+      LOGGER.error(error);
+    }
+    return errors;
+  }
+
+  private static String digest(FileChannel channel, Entry entry, ByteBuffer buffer)
+      throws IOException {
+    MessageDigest md = ChecksumManifest.newMessageDigest();
+    long position = entry.getExtent() * IsoImageReader.SECTOR_SIZE;
+    long remaining = entry.getSize();
+    while (remaining > 0) {
+      buffer.clear();
+      buffer.limit((int) Math.min(buffer.capacity(), remaining));
+      int n = channel.read(buffer, position);
+      if (n < 0) {
+        throw new IOException("Unexpected end of ISO image"); // $NON-NLS-1$
+      }
+      buffer.flip();
+      md.update(buffer);
+      position += n;
+      remaining -= n;
+    }
+    return ChecksumManifest.toHex(md.digest());
+  }
+
+  private static void verifyDicomdir(
+      IsoImageReader reader, Entry dicomdir, Map<String, Entry> entries, List<String> errors) {
+    try {
+      ByteBuffer buffer =
+          reader.read(dicomdir.getExtent() * IsoImageReader.SECTOR_SIZE, (int) dicomdir.getSize());
+      byte[] bytes = new byte[buffer.remaining()];
+      buffer.get(bytes);
+      Attributes dataset;
+      try (DicomInputStream dis = new DicomInputStream(new ByteArrayInputStream(bytes))) {
+        dis.readFileMetaInformation();
+        dataset = dis.readDataset(-1, -1);
+      }
+      Sequence records = dataset.getSequence(Tag.DirectoryRecordSequence);
+      if (records == null || records.isEmpty()) {
+        errors.add("DICOMDIR has no directory record");
+        return;
+      }
+      List<String> missing =
+          records.stream()
+              .map(r -> r.getStrings(Tag.ReferencedFileID))
+              .filter(ids -> ids != null && ids.length > 0)
+              .map(ids -> String.join("/", ids))
+              .filter(path -> !entries.containsKey(getKey(path)))
+              .collect(Collectors.toList());
+      for (String path : missing) {
+        errors.add("DICOMDIR references a missing file: " + path);
+      }
+    } catch (IOException e) {
+      errors.add("Cannot parse DICOMDIR: " + e.getMessage());
+    }
+  }
+
+  private static String getKey(String path) {
+    // Without Joliet, the names are in upper case in the primary volume
+    return path.toUpperCase(Locale.ENGLISH);
+  }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright (c) 2021 Weasis Team and other contributors.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse
+ * Public License 2.0 which is available at http://www.eclipse.org/legal/epl-2.0, or the Apache
+ * License, Version 2.0 which is available at https://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * SPDX-License-Identifier: EPL-2.0 OR Apache-2.0
+ */
+package org.weasis.isowriter;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.MessageDigest;
+import org.opencv.core.CvException;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfByte;
+import org.opencv.core.MatOfInt;
+import org.opencv.imgcodecs.Imgcodecs;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * JPEG encoder keeping the encoding parameters, the native output buffer, the heap copy buffer and
+ * the message digest for the whole export, so that encoding and writing an image does not allocate
+ * once the buffers have grown to the largest image size.
+ */
+public class JpegEncoder implements AutoCloseable {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(JpegEncoder.class);
+
+  private final MatOfInt params;
+  private final MatOfByte encoded = new MatOfByte();
+  private final MessageDigest md = ChecksumManifest.newMessageDigest();
+  private byte[] buffer = new byte[0];
+  private int size;
+
+  public JpegEncoder(int jpegQuality) {
+    this.params = new MatOfInt(Imgcodecs.IMWRITE_JPEG_QUALITY, jpegQuality);
+  }
+
+  /**
+   * Encodes the image in the internal buffer, see {@link #writeTo(File, ChecksumManifest)}.
+   *
+   * @return false if the encoding has failed
+   */
+  public boolean encode(Mat source) {
+    size = 0;
+    try {
+      if (!Imgcodecs.imencode(".jpg", source, encoded, params)) { // $NON-NLS-1$
+        return false;
+      }
+    } catch (CvException e) {
+      LOGGER.error("Cannot encode image to jpeg", e); // $NON-NLS-1$
+      return false;
+    }
+    int length = (int) encoded.total();
+    if (buffer.length < length) {
+      // Grow with a margin to avoid reallocating for slightly bigger images
+      buffer = new byte[length + (length >> 2)];
+    }
+    encoded.get(0, 0, buffer);
+    size = length;
+    return true;
+  }
+
+  /** Writes the last encoded image and records its digest in the manifest. */
+  public void writeTo(File file, ChecksumManifest manifest) throws IOException {
+    manifest.writeFile(file, buffer, size, md);
+  }
+
+  @Override
+  public void close() {
+    encoded.release();
+    params.release();
+    buffer = new byte[0];
+    size = 0;
+  }
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright (c) 2021 Weasis Team and other contributors.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse
+ * Public License 2.0 which is available at http://www.eclipse.org/legal/epl-2.0, or the Apache
+ * License, Version 2.0 which is available at https://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * SPDX-License-Identifier: EPL-2.0 OR Apache-2.0
+ */
+package org.weasis.isowriter;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reads the source files ahead of the writing of the export, in the same order, so that the reading
+ * of the sources (network share, cache disk...) overlaps the writing of the destination files. The
+ * number of files and the memory kept in advance are bounded, a file bigger than the memory budget
+ * is not prefetched. The content is not referenced anymore once taken or skipped by the consumer.
+ */
+public class SourcePrefetcher implements AutoCloseable {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(SourcePrefetcher.class);
+
+  public static final int DEFAULT_DEPTH = 16;
+  public static final int DEFAULT_BUDGET_MB = 64;
+
+  private final List<File> sources;
+  private final Map<File, Integer> indexes = new HashMap<>();
+  // Set to null by the consumer once the future is completed and the file taken or skipped
+  private final AtomicReferenceArray<CompletableFuture<byte[]>> futures;
+  private final int[] acquiredKB;
+  private final int budgetKB;
+  private final Semaphore slots;
+  private final Semaphore budget;
+  private final ExecutorService executor;
+  private final ExportMetrics metrics;
+
+  // Next index not consumed, only accessed by the consumer thread
+  private int consumed;
+  private volatile boolean closed;
+
+  public SourcePrefetcher(List<File> sources, ExportMetrics metrics) {
+    this(sources, DEFAULT_DEPTH, DEFAULT_BUDGET_MB, metrics);
+  }
+
+  public SourcePrefetcher(List<File> sources, int depth, int budgetMB, ExportMetrics metrics) {
+    this.sources = new ArrayList<>(sources);
+    this.futures = new AtomicReferenceArray<>(sources.size());
+    this.acquiredKB = new int[sources.size()];
+    this.budgetKB = budgetMB * 1024;
+    this.slots = new Semaphore(depth);
+    this.budget = new Semaphore(budgetKB);
+    this.metrics = metrics;
+    for (int i = 0; i < this.sources.size(); i++) {
+      indexes.putIfAbsent(this.sources.get(i), i);
+      futures.set(i, new CompletableFuture<>());
+    }
+    this.executor =
+        Executors.newSingleThreadExecutor(
+            r -> {
+              Thread t = new Thread(r, "ISO export prefetch"); // $NON-NLS-1$
+              t.setDaemon(true);
+              return t;
+            });
+    executor.execute(this::readAhead);
+  }
+
+  private void readAhead() {
+    for (int i = 0; i < sources.size() && !closed; i++) {
+      CompletableFuture<byte[]> future = futures.get(i);
+      if (future == null || future.isDone()) {
+        // Skipped by the consumer
+        continue;
+      }
+      File file = sources.get(i);
+      long length = file.length();
+      int kb = (int) Math.min(Integer.MAX_VALUE, (length + 1023) / 1024);
+      if (kb > budgetKB) {
+        future.complete(null);
+        continue;
+      }
+      try {
+        slots.acquire();
+        budget.acquire(kb);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      }
+      acquiredKB[i] = kb;
+      byte[] data = null;
+      try {
+        if (!future.isDone()) {
+          data = Files.readAllBytes(file.toPath());
+        }
+      } catch (IOException e) {
+        LOGGER.warn("Cannot prefetch {}", file, e); // $NON-NLS-1$
+      }
+      // Release the memory if the consumer has already skipped this file
+      if (data == null || !future.complete(data)) {
+        future.complete(null);
+        release(i);
+      }
+    }
+  }
+
+  private void release(int index) {
+    budget.release(acquiredKB[index]);
+    slots.release();
+  }
+
+  private void skip(int index) {
+    CompletableFuture<byte[]> future = futures.get(index);
+    if (future != null && !future.complete(null) && future.getNow(null) != null) {
+      release(index);
+    }
+    futures.set(index, null);
+  }
+
+  /**
+   * @return the content of the source file or null when the file must be read directly, the time
+   *     of the direct read must be recorded by the caller
+   */
+  public byte[] take(File source) {
+    Integer index = indexes.get(source);
+    if (index == null || index < consumed) {
+      return null;
+    }
+    while (consumed < index) {
+      skip(consumed++);
+    }
+    consumed = index + 1;
+
+    CompletableFuture<byte[]> future = futures.get(index);
+    if (future == null) {
+      return null;
+    }
+    long start = System.nanoTime();
+    byte[] data;
+    try {
+      data = future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      data = null;
+    } catch (ExecutionException e) {
+      data = null;
+    }
+    // Completed, the producer ignores the file
+    futures.set(index, null);
+    metrics.addPrefetchWait(data != null, System.nanoTime() - start);
+    if (data != null) {
+      release(index);
+    }
+    return data;
+  }
+
+  int getAvailableSlots() {
+    return slots.availablePermits();
+  }
+
+  int getAvailableBudgetKB() {
+    return budget.availablePermits();
+  }
+
+  /**
+   * @return the number of files not yet taken or skipped
+   */
+  int getPendingFiles() {
+    int count = 0;
+    for (int i = 0; i < futures.length(); i++) {
+      if (futures.get(i) != null) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  @Override
+  public void close() {
+    closed = true;
+    executor.shutdownNow();
+  }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) 2021 Weasis Team and other contributors.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse
+ * Public License 2.0 which is available at http://www.eclipse.org/legal/epl-2.0, or the Apache
+ * License, Version 2.0 which is available at https://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * SPDX-License-Identifier: EPL-2.0 OR Apache-2.0
+ */
+package org.weasis.isowriter;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class SourcePrefetcherTest {
+
+  private static final int FILE_KB = 4;
+
+  @TempDir Path dir;
+
+  private List<File> createFiles(int count, int kb) throws IOException {
+    List<File> files = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      files.add(createFile("f" + i, kb, i));
+    }
+    return files;
+  }
+
+  private File createFile(String name, int kb, int value) throws IOException {
+    byte[] data = new byte[kb * 1024];
+    data[0] = (byte) value;
+    return Files.write(dir.resolve(name), data).toFile();
+  }
+
+  @Test
+  void takeAllReleasesBudget() throws IOException {
+    List<File> files = createFiles(40, FILE_KB);
+    try (SourcePrefetcher prefetcher = new SourcePrefetcher(files, 4, 1, new ExportMetrics())) {
+      for (File file : files) {
+        assertArrayEquals(Files.readAllBytes(file.toPath()), prefetcher.take(file));
+      }
+      assertEquals(0, prefetcher.getPendingFiles());
+      assertEquals(4, prefetcher.getAvailableSlots());
+      assertEquals(1024, prefetcher.getAvailableBudgetKB());
+    }
+  }
+
+  @Test
+  void depthBoundsReadAhead() throws Exception {
+    List<File> files = createFiles(10, FILE_KB);
+    try (SourcePrefetcher prefetcher = new SourcePrefetcher(files, 3, 1, new ExportMetrics())) {
+      long timeout = System.currentTimeMillis() + 5000;
+      while (prefetcher.getAvailableBudgetKB() > 1024 - 3 * FILE_KB
+          && System.currentTimeMillis() < timeout) {
+        Thread.sleep(10);
+      }
+      assertEquals(1024 - 3 * FILE_KB, prefetcher.getAvailableBudgetKB());
+      assertEquals(0, prefetcher.getAvailableSlots());
+
+      // Taking a file releases its slot for the next one
+      assertArrayEquals(Files.readAllBytes(files.get(0).toPath()), prefetcher.take(files.get(0)));
+      assertEquals(9, prefetcher.getPendingFiles());
+    }
+  }
+
+  @Test
+  void skippedFilesAreReleased() throws IOException {
+    List<File> files = createFiles(30, FILE_KB);
+    try (SourcePrefetcher prefetcher = new SourcePrefetcher(files, 4, 1, new ExportMetrics())) {
+      assertArrayEquals(Files.readAllBytes(files.get(10).toPath()), prefetcher.take(files.get(10)));
+      assertEquals(19, prefetcher.getPendingFiles());
+      // Already skipped, must be read directly
+      assertNull(prefetcher.take(files.get(5)));
+
+      File last = files.get(files.size() - 1);
+      assertArrayEquals(Files.readAllBytes(last.toPath()), prefetcher.take(last));
+      assertEquals(0, prefetcher.getPendingFiles());
+      assertEquals(4, prefetcher.getAvailableSlots());
+      assertEquals(1024, prefetcher.getAvailableBudgetKB());
+    }
+  }
+
+  @Test
+  void fileOverBudgetIsNotPrefetched() throws IOException {
+    List<File> files = new ArrayList<>();
+    files.add(createFile("small", FILE_KB, 1));
+    files.add(createFile("big", 2048, 2));
+    files.add(createFile("next", FILE_KB, 3));
+    try (SourcePrefetcher prefetcher = new SourcePrefetcher(files, 4, 1, new ExportMetrics())) {
+      assertNotNull(prefetcher.take(files.get(0)));
+      assertNull(prefetcher.take(files.get(1)));
+      assertArrayEquals(Files.readAllBytes(files.get(2).toPath()), prefetcher.take(files.get(2)));
+      assertEquals(1024, prefetcher.getAvailableBudgetKB());
+    }
+  }
+
+  @Test
+  void unknownFileIsNotPrefetched() throws IOException {
+    List<File> files = createFiles(2, FILE_KB);
+    try (SourcePrefetcher prefetcher = new SourcePrefetcher(files, 4, 1, new ExportMetrics())) {
+      assertNull(prefetcher.take(dir.resolve("other").toFile()));
+      assertEquals(2, prefetcher.getPendingFiles());
+    }
+  }
+}